@@ -0,0 +1,162 @@
+import java.awt.image.BufferedImage;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/*
+ * Checks that encoding stays within its allocation budget once an encoder is
+ * set up. Each encode path (plain baseline, restart markers, optimized
+ * Huffman tables and streaming from a RowSource) is run with every
+ * subsampling scheme and DCT method, on a large and a small image, until two
+ * runs in a row allocate the same number of bytes. Bytes are counted on all
+ * threads, since restart segments are encoded on the fork-join pool.
+ *
+ * The plain baseline path must allocate at most BASE_BYTES per encode, at
+ * both sizes. The others keep per-image state (segment buffers, coefficient
+ * buffer, strip buffers) and may also allocate a fixed number of bytes per
+ * pixel, per row or per column on top of it.
+ *
+ * Exits with status 1 when an encode exceeds its budget or never settles.
+ *
+ * Usage: AllocationCheck [-size 256,2048]
+ */
+public class AllocationCheck {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Allowed per encode in every mode: the encoder, its tables and the
+    // per-MCU buffers
+    private static final long BASE_BYTES = 64 * 1024;
+
+    // Allowed difference between sizes on the baseline path, for allocation
+    // the JIT does not always eliminate
+    private static final long SLACK_BYTES = 4096;
+
+    // Runs on the large image before measuring, so that the JIT has compiled
+    // the pipeline. Interpreted Vector API code allocates the same on every
+    // run, so two equal runs alone do not show that it is compiled.
+    private static final int WARMUP = 5;
+
+    private static final int MAX_RUNS = 50;
+
+    enum Mode {
+        // bytes per pixel, per row and per column allowed on top of BASE_BYTES
+        BASELINE(0, 0, 0),
+        // the scratch and output buffer of each segment, one per MCU row,
+        // which grows to hold the segment
+        RESTART(4, 4096, 0),
+        // the converted planes and the coefficient buffer
+        OPTIMIZE(24, 0, 0),
+        // the pixel and plane strips of one MCU row
+        STREAM(0, 0, 512);
+
+        final long bytesPerPixel;
+        final long bytesPerRow;
+        final long bytesPerColumn;
+
+        Mode(long bytesPerPixel, long bytesPerRow, long bytesPerColumn) {
+            this.bytesPerPixel = bytesPerPixel;
+            this.bytesPerRow = bytesPerRow;
+            this.bytesPerColumn = bytesPerColumn;
+        }
+
+        long budget(int size) {
+            return BASE_BYTES + bytesPerPixel * size * size + (bytesPerRow + bytesPerColumn) * size;
+        }
+    }
+
+    public static void main(String[] args) {
+        int small = 256;
+        int large = 2048;
+        for (int i = 0; i < args.length; i++) {
+            String[] sizes = args[i].equals("-size") && i + 1 < args.length ? args[++i].split(",") : null;
+            if (sizes != null && sizes.length == 2) {
+                small = Integer.parseInt(sizes[0]);
+                large = Integer.parseInt(sizes[1]);
+            } else {
+                System.err.println("Usage: AllocationCheck [-size small,large]");
+                System.exit(2);
+            }
+        }
+
+        BufferedImage smallImage = createImage(small);
+        BufferedImage largeImage = createImage(large);
+        boolean failed = false;
+
+        System.out.printf("%-8s %-8s %-6s %14s %14s%n", "mode", "sampling", "dct", small + " B/op", large + " B/op");
+        for (Mode mode : Mode.values()) {
+            for (JpegEncoder.Subsampling subsampling : JpegEncoder.Subsampling.values()) {
+                for (JpegEncoder.DctMethod method : JpegEncoder.DctMethod.values()) {
+                    for (int i = 0; i < WARMUP; i++) {
+                        encode(largeImage, mode, subsampling, method);
+                    }
+                    long largeBytes = allocatedPerEncode(largeImage, mode, subsampling, method);
+                    long smallBytes = allocatedPerEncode(smallImage, mode, subsampling, method);
+
+                    String problem = null;
+                    if (smallBytes < 0 || largeBytes < 0) {
+                        problem = "does not settle";
+                    } else if (smallBytes > mode.budget(small) || largeBytes > mode.budget(large)) {
+                        problem = "over budget";
+                    } else if (mode == Mode.BASELINE && largeBytes > smallBytes + SLACK_BYTES) {
+                        problem = "grows with the image size";
+                    }
+                    failed |= problem != null;
+                    System.out.printf("%-8s %-8s %-6s %14d %14d%s%n", mode, subsampling, method,
+                            smallBytes, largeBytes, problem != null ? "  FAIL: " + problem : "");
+                }
+            }
+        }
+
+        if (failed) {
+            System.out.println("Allocation exceeds its budget");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /*
+     * Bytes allocated on all threads for one compress(), once two runs in a
+     * row allocate the same, or -1 if they do not within MAX_RUNS.
+     */
+    private static long allocatedPerEncode(BufferedImage image, Mode mode, JpegEncoder.Subsampling subsampling,
+            JpegEncoder.DctMethod method) {
+        long previous = -1;
+        for (int i = 0; i < MAX_RUNS; i++) {
+            long before = THREADS.getTotalThreadAllocatedBytes();
+            encode(image, mode, subsampling, method);
+            long bytes = THREADS.getTotalThreadAllocatedBytes() - before;
+            if (bytes == previous) {
+                return bytes;
+            }
+            previous = bytes;
+        }
+        return -1;
+    }
+
+    private static void encode(BufferedImage image, Mode mode, JpegEncoder.Subsampling subsampling,
+            JpegEncoder.DctMethod method) {
+        OutputStream out = OutputStream.nullOutputStream();
+        JpegEncoder encoder = mode == Mode.STREAM
+                ? new JpegEncoder(new JpegEncoder.RasterRowSource(image.getRaster()), 75, out, subsampling)
+                : new JpegEncoder(image, 75, out, subsampling);
+        encoder.setDctMethod(method);
+        encoder.setRestartInterval(mode == Mode.RESTART ? 1 : 0);
+        encoder.setOptimizeCoding(mode == Mode.OPTIMIZE);
+        encoder.compress();
+    }
+
+    /*
+     * A noisy test image, so that the blocks have many nonzero coefficients.
+     */
+    private static BufferedImage createImage(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        int[] pixels = new int[size * size];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt(1 << 24);
+        }
+        image.setRGB(0, 0, size, size, pixels, 0, size);
+        return image;
+    }
+}
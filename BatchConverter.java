@@ -0,0 +1,205 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+ * Compresses many images concurrently. Reading, decoding and writing files
+ * run on virtual threads, while encoding runs on a platform thread pool sized
+ * to the number of cores. A semaphore limits how many decoded images are held
+ * in memory at once.
+ */
+public class BatchConverter {
+    // Shared by every encoding thread
+    private final JpegEncoderConfig config;
+    private final int encodeThreads;
+    private final int maxInFlight;
+
+    public BatchConverter(int quality, JpegEncoder.Subsampling subsampling) {
+        this(quality, subsampling, Runtime.getRuntime().availableProcessors(),
+                2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /*
+     * encodeThreads: size of the encoding pool
+     * maxInFlight: maximum number of images decoded but not yet written
+     */
+    public BatchConverter(int quality, JpegEncoder.Subsampling subsampling, int encodeThreads, int maxInFlight) {
+        this.config = JpegEncoderConfig.of(quality, subsampling);
+        this.encodeThreads = encodeThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /*
+     * Compresses every image in the list into outputDir, naming each output
+     * after its input with a .jpg extension.
+     */
+    public Result convert(List<Path> inputs, Path outputDir) throws IOException {
+        Files.createDirectories(outputDir);
+
+        Semaphore permits = new Semaphore(maxInFlight);
+        AtomicInteger converted = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        AtomicLong inputBytes = new AtomicLong();
+        AtomicLong outputBytes = new AtomicLong();
+
+        long start = System.nanoTime();
+        try (ExecutorService encodePool = Executors.newFixedThreadPool(encodeThreads);
+                ExecutorService ioPool = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path input : inputs) {
+                // Blocks here once maxInFlight images are pending, so decoded
+                // images can't pile up faster than they are encoded.
+                permits.acquireUninterruptibly();
+                ioPool.execute(() -> {
+                    try {
+                        BufferedImage image = ImageIO.read(input.toFile());
+                        if (image == null) {
+                            throw new IOException("Unsupported image format");
+                        }
+                        ByteBuffer jpeg = encodePool.submit(() -> config.encode(image)).get();
+                        int length = jpeg.remaining();
+
+                        try (FileChannel channel = FileChannel.open(outputDir.resolve(outputName(input)),
+                                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING)) {
+                            while (jpeg.hasRemaining()) {
+                                channel.write(jpeg);
+                            }
+                        }
+                        inputBytes.addAndGet(Files.size(input));
+                        outputBytes.addAndGet(length);
+                        converted.incrementAndGet();
+                    } catch (IOException | ExecutionException | RuntimeException e) {
+                        // Decoders throw unchecked exceptions on some corrupt files.
+                        System.err.println("Could not convert " + input + ": " + e);
+                        failed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failed.incrementAndGet();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return new Result(converted.get(), failed.get(), inputBytes.get(), outputBytes.get(), elapsed);
+    }
+
+    private static String outputName(Path input) {
+        String name = input.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + ".jpg";
+    }
+
+    /*
+     * Lists the regular files in a directory, or returns the path itself if it
+     * is a file.
+     */
+    public static List<Path> listImages(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /*
+     * Aggregate statistics of one batch.
+     */
+    public static class Result {
+        public final int converted;
+        public final int failed;
+        public final long inputBytes;
+        public final long outputBytes;
+        public final long elapsedNanos;
+
+        Result(int converted, int failed, long inputBytes, long outputBytes, long elapsedNanos) {
+            this.converted = converted;
+            this.failed = failed;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double imagesPerSecond() {
+            return converted / (elapsedNanos / 1e9);
+        }
+
+        // Throughput of input data, in MB/s
+        public double megabytesPerSecond() {
+            return inputBytes / 1e6 / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Converted %d images (%d failed) in %d ms: %.1f images/s, %.1f MB/s, "
+                    + "%d bytes -> %d bytes", converted, failed, elapsedNanos / 1_000_000, imagesPerSecond(),
+                    megabytesPerSecond(), inputBytes, outputBytes);
+        }
+    }
+
+    private static final String USAGE = "Usage: BatchConverter <directory or files...> [-o outputDir] "
+            + "[-q quality] [-s YUV_444|YUV_422|YUV_420|YUV_400]";
+
+    /*
+     * Usage: BatchConverter <directory or files...> [-o outputDir] [-q quality]
+     * [-s YUV_444|YUV_422|YUV_420|YUV_400]
+     */
+    public static void main(String[] args) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        Path outputDir = Path.of("output");
+        int quality = 20;
+        JpegEncoder.Subsampling subsampling = JpegEncoder.Subsampling.YUV_422;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                boolean option = args[i].equals("-o") || args[i].equals("-q") || args[i].equals("-s");
+                if (option && i + 1 == args.length) {
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                }
+                switch (args[i]) {
+                    case "-o":
+                        outputDir = Path.of(args[++i]);
+                        break;
+                    case "-q":
+                        quality = Integer.parseInt(args[++i]);
+                        break;
+                    case "-s":
+                        subsampling = JpegEncoder.Subsampling.valueOf(args[++i]);
+                        break;
+                    default:
+                        inputs.addAll(listImages(Path.of(args[i])));
+                        break;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            // Also a bad number for -q, or an unknown scheme for -s
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (inputs.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        System.out.println(new BatchConverter(quality, subsampling).convert(inputs, outputDir));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Checks the FIXED color conversion over all 2^24 RGB colors. Every Y, Cb and
+ * Cr sample has to equal the one libjpeg's jccolor.c computes with its
+ * rgb_ycc_start() lookup tables, and lie within MAX_FLOAT_DEVIATION of the
+ * FLOAT conversion.
+ *
+ * Exits with status 1 when a color fails.
+ *
+ * Usage: ColorConversionCheck
+ */
+public class ColorConversionCheck {
+    // Rounding can move a sample up to half a step, plus the error of the
+    // 16-bit constants.
+    private static final double MAX_FLOAT_DEVIATION = 0.51;
+
+    // jccolor.c's fixed-point scale and its table of 8 x 256 entries
+    private static final int SCALE_BITS = 16;
+    private static final int ONE_HALF = 1 << (SCALE_BITS - 1);
+    private static final int CBCR_OFFSET = 128 << SCALE_BITS;
+    private static final int R_Y_OFF = 0;
+    private static final int G_Y_OFF = 256;
+    private static final int B_Y_OFF = 2 * 256;
+    private static final int R_CB_OFF = 3 * 256;
+    private static final int G_CB_OFF = 4 * 256;
+    private static final int B_CB_OFF = 5 * 256;
+    private static final int R_CR_OFF = B_CB_OFF;
+    private static final int G_CR_OFF = 6 * 256;
+    private static final int B_CR_OFF = 7 * 256;
+    private static final int[] TABLE = new int[8 * 256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            TABLE[i + R_Y_OFF] = fix(0.29900) * i;
+            TABLE[i + G_Y_OFF] = fix(0.58700) * i;
+            TABLE[i + B_Y_OFF] = fix(0.11400) * i + ONE_HALF;
+            TABLE[i + R_CB_OFF] = -fix(0.16874) * i;
+            TABLE[i + G_CB_OFF] = -fix(0.33126) * i;
+            // B=>Cb and R=>Cr are the same table; ONE_HALF - 1 keeps them at
+            // most 255.
+            TABLE[i + B_CB_OFF] = fix(0.50000) * i + CBCR_OFFSET + ONE_HALF - 1;
+            TABLE[i + G_CR_OFF] = -fix(0.41869) * i;
+            TABLE[i + B_CR_OFF] = -fix(0.08131) * i;
+        }
+    }
+
+    private static int fix(double x) {
+        return (int) (x * (1L << SCALE_BITS) + 0.5);
+    }
+
+    public static void main(String[] args) {
+        JpegEncoder.ColorConverter fixed = JpegEncoder.FIXED_COLOR_CONVERTER;
+        JpegEncoder.ColorConverter exact = new JpegEncoder.ScalarColorConverter();
+
+        // One row per red and green value, one pixel per blue value
+        int[] pixels = new int[256];
+        float[][] fixedRows = new float[3][256];
+        float[][] floatRows = new float[3][256];
+        long mismatches = 0;
+        double maxDeviation = 0;
+
+        for (int r = 0; r < 256; r++) {
+            for (int g = 0; g < 256; g++) {
+                for (int b = 0; b < 256; b++) {
+                    pixels[b] = (r << 16) | (g << 8) | b;
+                }
+                fixed.convertRow(pixels, 0, 256, fixedRows[0], 0, fixedRows[1], fixedRows[2]);
+                exact.convertRow(pixels, 0, 256, floatRows[0], 0, floatRows[1], floatRows[2]);
+
+                for (int b = 0; b < 256; b++) {
+                    int[] reference = {
+                            (TABLE[r + R_Y_OFF] + TABLE[g + G_Y_OFF] + TABLE[b + B_Y_OFF]) >> SCALE_BITS,
+                            (TABLE[r + R_CB_OFF] + TABLE[g + G_CB_OFF] + TABLE[b + B_CB_OFF]) >> SCALE_BITS,
+                            (TABLE[r + R_CR_OFF] + TABLE[g + G_CR_OFF] + TABLE[b + B_CR_OFF]) >> SCALE_BITS
+                    };
+                    for (int c = 0; c < 3; c++) {
+                        if (fixedRows[c][b] != reference[c]) {
+                            if (mismatches++ < 10) {
+                                System.out.printf("rgb(%d, %d, %d) component %d: FIXED %.0f, jccolor %d%n",
+                                        r, g, b, c, fixedRows[c][b], reference[c]);
+                            }
+                        }
+                        maxDeviation = Math.max(maxDeviation, Math.abs(fixedRows[c][b] - floatRows[c][b]));
+                    }
+                }
+            }
+        }
+
+        System.out.printf("%d samples differ from jccolor, max deviation from FLOAT %.4f (limit %.2f)%n",
+                mismatches, maxDeviation, MAX_FLOAT_DEVIATION);
+        if (mismatches > 0 || maxDeviation > MAX_FLOAT_DEVIATION) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,372 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+/*
+ * Benchmarks each stage of the encoder separately, and the full compress(),
+ * over image sizes, qualities and subsampling schemes.
+ *
+ * Each stage runs in a fresh JVM of its own, started with the same JVM
+ * options and class path, so that code compiled for one stage does not
+ * profile or deoptimize another. In it, every benchmark is warmed up and then
+ * timed in rounds of a fixed number of operations until the last ROUND_WINDOW
+ * rounds vary by less than the target coefficient of variation. It reports
+ * their mean and standard deviation, and the bytes the calling thread
+ * allocated per operation in them. Every operation returns a value that goes
+ * into a sink, so that the JIT cannot drop its work. The converted planes the
+ * downsample, DCT, quantize and Huffman stages start from are built once per
+ * image and scheme, outside the timed operations.
+ *
+ * Usage: EncoderBenchmark [-size 512,2048] [-q 1,50,90,100]
+ * [-s YUV_444,YUV_422,YUV_420] [-stage name,...] [-warmup 5] [-iterations 10]
+ * [-cv 0.02] [-fork 0]
+ */
+public class EncoderBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final String[] STAGES = {
+            "jpegInfo", "colorConvert", "colorFixed", "downsample", "forwardDCT", "quantize", "huffman",
+            "bitStream", "compress"
+    };
+
+    // Stages that start from the converted planes
+    private static final List<String> PLANE_STAGES = Arrays.asList("downsample", "forwardDCT", "quantize",
+            "huffman");
+
+    // Rounds whose spread decides whether the timings have settled
+    private static final int ROUND_WINDOW = 5;
+    private static final int MAX_ROUNDS = 50;
+
+    private static int warmup = 5;
+    private static int iterations = 10;
+    private static double targetCv = 0.02;
+
+    // Results of every operation, read once at the end
+    private static long sink;
+
+    /*
+     * One benchmarked operation. It returns something computed from its
+     * output, which goes into the sink.
+     */
+    private interface Operation {
+        long run();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int[] sizes = { 512, 2048 };
+        int[] qualities = { 1, 50, 90, 100 };
+        JpegEncoder.Subsampling[] schemes = JpegEncoder.Subsampling.values();
+        List<String> stages = Arrays.asList(STAGES);
+        boolean fork = true;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-size":
+                    sizes = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-q":
+                    qualities = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "-s":
+                    schemes = Arrays.stream(args[++i].split(",")).map(JpegEncoder.Subsampling::valueOf)
+                            .toArray(JpegEncoder.Subsampling[]::new);
+                    break;
+                case "-stage":
+                    stages = Arrays.asList(args[++i].split(","));
+                    break;
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-cv":
+                    targetCv = Double.parseDouble(args[++i]);
+                    break;
+                case "-fork":
+                    fork = Integer.parseInt(args[++i]) != 0;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        for (String stage : stages) {
+            if (!Arrays.asList(STAGES).contains(stage)) {
+                throw new IllegalArgumentException("Unknown stage: " + stage);
+            }
+        }
+
+        boolean child = System.getProperty("benchmark.child") != null;
+        if (!child) {
+            System.out.printf("%-14s %6s %4s %-8s %12s %10s %6s %14s%n", "stage", "size", "q", "sampling", "ms/op",
+                    "stddev", "rounds", "B/op");
+        }
+        if (fork && !child) {
+            for (String stage : stages) {
+                forkStage(stage, sizes, qualities, schemes);
+            }
+            return;
+        }
+
+        for (int size : sizes) {
+            BufferedImage image = createImage(size);
+            for (JpegEncoder.Subsampling subsampling : schemes) {
+                // The planes do not depend on the quality, so they are converted
+                // once, and only for the stages that read them.
+                JpegEncoder.JpegInfo info = stages.stream().anyMatch(PLANE_STAGES::contains)
+                        ? new JpegEncoder.JpegInfo(image, subsampling) : null;
+                for (int quality : qualities) {
+                    for (String stage : stages) {
+                        run(stage, image, info, quality, subsampling);
+                    }
+                }
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    /*
+     * Runs one stage with every size, quality and scheme in a new JVM, which
+     * prints its results to this one's output.
+     */
+    private static void forkStage(String stage, int[] sizes, int[] qualities, JpegEncoder.Subsampling[] schemes)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-Dbenchmark.child=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(EncoderBenchmark.class.getName());
+        command.addAll(Arrays.asList(
+                "-size", Arrays.stream(sizes).mapToObj(String::valueOf).collect(Collectors.joining(",")),
+                "-q", Arrays.stream(qualities).mapToObj(String::valueOf).collect(Collectors.joining(",")),
+                "-s", Arrays.stream(schemes).map(Enum::name).collect(Collectors.joining(",")),
+                "-stage", stage,
+                "-warmup", String.valueOf(warmup),
+                "-iterations", String.valueOf(iterations),
+                "-cv", String.valueOf(targetCv)));
+
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0) {
+            throw new IllegalStateException("Benchmark of " + stage + " exited with status " + status);
+        }
+    }
+
+    /*
+     * A photo-like test image: smooth gradients with some noise.
+     */
+    private static BufferedImage createImage(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int r = (x * 255 / size + random.nextInt(16)) & 0xff;
+                int g = (y * 255 / size + random.nextInt(16)) & 0xff;
+                int b = ((x + y) * 127 / size + random.nextInt(16)) & 0xff;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static void run(String stage, BufferedImage image, JpegEncoder.JpegInfo info, int quality,
+            JpegEncoder.Subsampling subsampling) {
+        Operation operation = createOperation(stage, image, info, quality, subsampling);
+
+        for (int i = 0; i < warmup; i++) {
+            sink += operation.run();
+        }
+
+        // Rounds of iterations operations, until the last ROUND_WINDOW agree
+        long threadId = Thread.currentThread().threadId();
+        double[] msPerOp = new double[MAX_ROUNDS];
+        long[] allocated = new long[MAX_ROUNDS];
+        int rounds = 0;
+        int first;
+        double mean;
+        double stddev;
+        do {
+            long bytes = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += operation.run();
+            }
+            msPerOp[rounds] = (System.nanoTime() - start) / 1e6 / iterations;
+            allocated[rounds++] = THREADS.getThreadAllocatedBytes(threadId) - bytes;
+
+            first = Math.max(0, rounds - ROUND_WINDOW);
+            mean = 0;
+            for (int i = first; i < rounds; i++) {
+                mean += msPerOp[i];
+            }
+            mean /= rounds - first;
+            double variance = 0;
+            for (int i = first; i < rounds; i++) {
+                variance += (msPerOp[i] - mean) * (msPerOp[i] - mean);
+            }
+            stddev = rounds - first > 1 ? Math.sqrt(variance / (rounds - first - 1)) : 0;
+        } while (rounds < MAX_ROUNDS && (rounds < ROUND_WINDOW || stddev > targetCv * mean));
+        long bytesPerOp = Arrays.stream(allocated, first, rounds).sum() / ((long) (rounds - first) * iterations);
+
+        // Rounds marked with * ran out before the timings settled
+        System.out.printf("%-14s %6d %4d %-8s %12.3f %10.3f %5d%s %14d%n", stage, image.getWidth(), quality,
+                subsampling, mean, stddev, rounds, stddev > targetCv * mean ? "*" : " ",
+                bytesPerOp);
+    }
+
+    /*
+     * Sets up the inputs of a stage outside the measured operation. info holds
+     * the converted planes for the stages in PLANE_STAGES, and is null
+     * otherwise.
+     */
+    private static Operation createOperation(String stage, BufferedImage image, JpegEncoder.JpegInfo info,
+            int quality, JpegEncoder.Subsampling subsampling) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        JpegEncoder.Quantizer quantizer = new JpegEncoder.Quantizer(quality);
+
+        switch (stage) {
+            case "jpegInfo":
+                // Pixel grabbing, color conversion and downsampling together
+                return () -> Float.floatToIntBits(new JpegEncoder.JpegInfo(image, subsampling).y.data[0]);
+
+            case "colorConvert":
+            case "colorFixed": {
+                JpegEncoder.ColorConverter converter = stage.equals("colorFixed")
+                        ? JpegEncoder.FIXED_COLOR_CONVERTER : JpegEncoder.DEFAULT_COLOR_CONVERTER;
+                int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+                float[] y = new float[width];
+                float[] cb = new float[width];
+                float[] cr = new float[width];
+                return () -> {
+                    long result = 0;
+                    for (int row = 0; row < height; row++) {
+                        converter.convertRow(pixels, row * width, width, y, 0, cb, cr);
+                        result += Float.floatToIntBits(y[row % width]) + Float.floatToIntBits(cr[row % width]);
+                    }
+                    return result;
+                };
+            }
+
+            case "downsample": {
+                if (info.cb == null) {
+                    // YUV_400 has no chroma to downsample
+                    return () -> 0;
+                }
+                float[] row = Arrays.copyOf(info.y.data, info.paddedWidth);
+                return () -> {
+                    for (int r = 0; r < info.paddedHeight; r++) {
+                        info.downsampleRow(row, info.cb, r);
+                    }
+                    return Float.floatToIntBits(info.cb.data[info.cb.data.length - 1]);
+                };
+            }
+
+            case "forwardDCT": {
+                JpegEncoder.Plane plane = info.y;
+                JpegEncoder.DCT dct = JpegEncoder.newDCT();
+                float[] coeffs = new float[64];
+                return () -> {
+                    long result = 0;
+                    for (int y = 0; y < plane.height; y += 8) {
+                        for (int x = 0; x < plane.width; x += 8) {
+                            dct.forwardDCT(plane.data, plane.offset(x, y), plane.stride, coeffs);
+                            result += Float.floatToIntBits(coeffs[0]);
+                        }
+                    }
+                    return result;
+                };
+            }
+
+            case "quantize": {
+                float[][] blocks = transformBlocks(info.y);
+                int[] workspace = new int[64];
+                int[] out = new int[64];
+                return () -> {
+                    long result = 0;
+                    for (float[] block : blocks) {
+                        result ^= quantizer.quantizeInto(block, workspace, out, true);
+                    }
+                    return result;
+                };
+            }
+
+            case "huffman": {
+                float[][] coeffs = transformBlocks(info.y);
+                int[][] blocks = new int[coeffs.length][64];
+                long[] masks = new long[coeffs.length];
+                int[] workspace = new int[64];
+                for (int i = 0; i < coeffs.length; i++) {
+                    masks[i] = quantizer.quantizeInto(coeffs[i], workspace, blocks[i], true);
+                }
+                JpegEncoder.Huffman huffman = new JpegEncoder.Huffman();
+                JpegEncoder.MemorySink out = JpegEncoder.ByteSink.toMemory(1 << 16);
+                return () -> {
+                    out.reset();
+                    JpegEncoder.BitStream bitStream = new JpegEncoder.BitStream(out);
+                    int lastDc = 0;
+                    for (int i = 0; i < blocks.length; i++) {
+                        lastDc = huffman.encodeBlock(bitStream, blocks[i], masks[i], lastDc, true);
+                    }
+                    bitStream.flush();
+                    return out.size();
+                };
+            }
+
+            case "bitStream": {
+                // Code sizes and values as they typically come out of encodeBlock
+                Random random = new Random(1);
+                int[] sizes = new int[1 << 16];
+                int[] codes = new int[sizes.length];
+                for (int i = 0; i < sizes.length; i++) {
+                    sizes[i] = 2 + random.nextInt(15);
+                    codes[i] = random.nextInt(1 << sizes[i]);
+                }
+                JpegEncoder.MemorySink out = JpegEncoder.ByteSink.toMemory(1 << 16);
+                return () -> {
+                    out.reset();
+                    JpegEncoder.BitStream bitStream = new JpegEncoder.BitStream(out);
+                    for (int i = 0; i < sizes.length; i++) {
+                        bitStream.write(codes[i], sizes[i]);
+                    }
+                    bitStream.flush();
+                    return out.size();
+                };
+            }
+
+            case "compress":
+                return () -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    new JpegEncoder(image, quality, out, subsampling).compress();
+                    return out.size();
+                };
+
+            default:
+                throw new IllegalArgumentException("Unknown stage: " + stage);
+        }
+    }
+
+    private static float[][] transformBlocks(JpegEncoder.Plane plane) {
+        JpegEncoder.DCT dct = JpegEncoder.newDCT();
+        List<float[]> blocks = new ArrayList<>();
+        for (int y = 0; y < plane.height; y += 8) {
+            for (int x = 0; x < plane.width; x += 8) {
+                float[] coeffs = new float[64];
+                dct.forwardDCT(plane.data, plane.offset(x, y), plane.stride, coeffs);
+                blocks.add(coeffs);
+            }
+        }
+        return blocks.toArray(new float[0][]);
+    }
+}
@@ -0,0 +1,263 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/*
+ * EncoderMetrics - Where the time of one JpegEncoder went, stage by stage,
+ * and how much data it produced.
+ *
+ * Metrics are only collected while a listener is set or the jpeg.Encode JFR
+ * event is enabled. Otherwise encoders hold no metrics object, and the hot
+ * path costs one null check per block. Encoding threads collect into their
+ * own instance, which is merged into the encoder's at the end of each task.
+ */
+public final class EncoderMetrics {
+	/**
+	 * The stages of the encoder. DCT includes quantization for the integer
+	 * DCT methods, which do both in one pass. When the image is converted one
+	 * MCU at a time, COLOR_CONVERT includes reading and downsampling it.
+	 */
+	public enum Stage {
+		PIXEL_FETCH, COLOR_CONVERT, DOWNSAMPLE, DCT, QUANTIZE, HUFFMAN, IO
+	}
+
+	/**
+	 * Receives the metrics of every encoded image, on the thread that encoded
+	 * it.
+	 */
+	public interface Listener {
+		void imageEncoded(EncoderMetrics metrics);
+	}
+
+	private static volatile Listener listener;
+
+	private final long[] stageNanos = new long[Stage.values().length];
+	long blocks;
+	long mcus;
+	long bytes;
+	long stuffedBytes;
+	long coefficients;
+	long zeroCoefficients;
+	int width;
+	int height;
+	int quality;
+
+	// Times the whole encode. Null for the metrics of a single thread.
+	private final EncodeEvent event;
+
+	private EncoderMetrics(EncodeEvent event) {
+		this.event = event;
+	}
+
+	/**
+	 * Sets the listener every encoder reports to, or null to stop collecting
+	 * metrics unless JFR records them.
+	 */
+	public static void setListener(Listener listener) {
+		EncoderMetrics.listener = listener;
+	}
+
+	/**
+	 * Creates metrics for a new encoder, or returns null when nothing would
+	 * read them. No event can be enabled before JFR is initialized, so until
+	 * then the event class is not even loaded, which would start JFR up.
+	 * After that, isEnabled() on an event instance only reads a flag, where
+	 * EventType would go through JFR's synchronized metadata.
+	 */
+	static EncoderMetrics create() {
+		if (listener == null && !FlightRecorder.isInitialized()) {
+			return null;
+		}
+		EncodeEvent event = new EncodeEvent();
+		if (listener == null && !event.isEnabled()) {
+			return null;
+		}
+		event.begin();
+		return new EncoderMetrics(event);
+	}
+
+	/**
+	 * Metrics for one encoding thread, to be merged into the encoder's.
+	 */
+	static EncoderMetrics forTask() {
+		return new EncoderMetrics(null);
+	}
+
+	void add(Stage stage, long nanos) {
+		stageNanos[stage.ordinal()] += nanos;
+	}
+
+	/**
+	 * Counts the zero coefficients of a quantized block from its nonzero mask.
+	 */
+	void countBlock(long nonzero) {
+		coefficients += 64;
+		zeroCoefficients += 64 - Long.bitCount(nonzero);
+	}
+
+	/**
+	 * Counts the zero coefficients of a whole coefficient buffer.
+	 */
+	void countCoefficients(short[] quantized) {
+		long zeros = 0;
+		for (short coefficient : quantized) {
+			if (coefficient == 0) {
+				zeros++;
+			}
+		}
+		coefficients += quantized.length;
+		zeroCoefficients += zeros;
+	}
+
+	/**
+	 * Clears the counts of the output, before it is written again.
+	 */
+	synchronized void resetCounts() {
+		coefficients = 0;
+		zeroCoefficients = 0;
+		stuffedBytes = 0;
+		bytes = 0;
+	}
+
+	/**
+	 * Adds the metrics of an encoding thread.
+	 */
+	synchronized void merge(EncoderMetrics other) {
+		for (int i = 0; i < stageNanos.length; i++) {
+			stageNanos[i] += other.stageNanos[i];
+		}
+		coefficients += other.coefficients;
+		zeroCoefficients += other.zeroCoefficients;
+		stuffedBytes += other.stuffedBytes;
+	}
+
+	/**
+	 * Commits the JFR event and passes the metrics to the listener.
+	 */
+	void publish() {
+		if (event != null && event.shouldCommit()) {
+			event.width = width;
+			event.height = height;
+			event.quality = quality;
+			event.pixelFetch = getNanos(Stage.PIXEL_FETCH);
+			event.colorConvert = getNanos(Stage.COLOR_CONVERT);
+			event.downsample = getNanos(Stage.DOWNSAMPLE);
+			event.dct = getNanos(Stage.DCT);
+			event.quantize = getNanos(Stage.QUANTIZE);
+			event.huffman = getNanos(Stage.HUFFMAN);
+			event.io = getNanos(Stage.IO);
+			event.blocks = blocks;
+			event.mcus = mcus;
+			event.bytes = bytes;
+			event.stuffedBytes = stuffedBytes;
+			event.zeroCoefficientRatio = getZeroCoefficientRatio();
+			event.commit();
+		}
+		Listener current = listener;
+		if (current != null) {
+			current.imageEncoded(this);
+		}
+	}
+
+	/**
+	 * Time spent in a stage, summed over all threads.
+	 */
+	public synchronized long getNanos(Stage stage) {
+		return stageNanos[stage.ordinal()];
+	}
+
+	public long getBlocks() {
+		return blocks;
+	}
+
+	public long getMcus() {
+		return mcus;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getStuffedBytes() {
+		return stuffedBytes;
+	}
+
+	/**
+	 * Fraction of the quantized coefficients that are zero.
+	 */
+	public double getZeroCoefficientRatio() {
+		return coefficients == 0 ? 0 : (double) zeroCoefficients / coefficients;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getQuality() {
+		return quality;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%dx%d q%d:", width, height, quality));
+		for (Stage stage : Stage.values()) {
+			sb.append(String.format(" %s=%.3fms", stage.name().toLowerCase(), getNanos(stage) / 1e6));
+		}
+		sb.append(String.format(" blocks=%d mcus=%d bytes=%d stuffed=%d zeros=%.1f%%", blocks, mcus, bytes,
+				stuffedBytes, 100 * getZeroCoefficientRatio()));
+		return sb.toString();
+	}
+
+	@Name("jpeg.Encode")
+	@Label("JPEG Encode")
+	@Category("JPEG")
+	public static class EncodeEvent extends Event {
+		@Label("Width")
+		int width;
+		@Label("Height")
+		int height;
+		@Label("Quality")
+		int quality;
+		@Label("Pixel Fetch")
+		@Timespan(Timespan.NANOSECONDS)
+		long pixelFetch;
+		@Label("Color Convert")
+		@Timespan(Timespan.NANOSECONDS)
+		long colorConvert;
+		@Label("Downsample")
+		@Timespan(Timespan.NANOSECONDS)
+		long downsample;
+		@Label("DCT")
+		@Timespan(Timespan.NANOSECONDS)
+		long dct;
+		@Label("Quantize")
+		@Timespan(Timespan.NANOSECONDS)
+		long quantize;
+		@Label("Huffman")
+		@Timespan(Timespan.NANOSECONDS)
+		long huffman;
+		@Label("I/O")
+		@Timespan(Timespan.NANOSECONDS)
+		long io;
+		@Label("Blocks")
+		long blocks;
+		@Label("MCUs")
+		long mcus;
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Stuffed Bytes")
+		long stuffedBytes;
+		@Label("Zero Coefficient Ratio")
+		double zeroCoefficientRatio;
+	}
+}
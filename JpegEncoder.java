@@ -12,14 +12,35 @@
 // Jpeg Group's Jpeg 6a library, Copyright Thomas G. Lane.
 // See license.txt for details.
 
-import java.awt.AWTException;
 import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.awt.image.PixelGrabber;
-import java.io.BufferedOutputStream;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 public class JpegEncoder {
 	/**
@@ -28,52 +49,575 @@ public class JpegEncoder {
 	public enum Subsampling {
 		YUV_444, // 4:4:4
 		YUV_422, // 4:2:2
-		YUV_420 // 4:2:0
+		YUV_420, // 4:2:0
+		YUV_400 // grayscale, luma only
+	}
+
+	/**
+	 * Defines the forward DCT implementations available.
+	 */
+	public enum DctMethod {
+		FLOAT, // AAN floating-point DCT
+		ISLOW, // accurate 13-bit fixed-point integer DCT
+		IFAST // fast 8-bit fixed-point integer AAN DCT
+	}
+
+	/**
+	 * Defines the RGB to YCbCr conversions available.
+	 */
+	public enum ColorMethod {
+		FLOAT, // JFIF equations in floating point
+		FIXED // 16-bit fixed point with libjpeg's rounding, giving integer samples
 	}
 
 	// The image to be compressed.
 	private Image image;
-	// The quality setting (1-100) for the compression.
-	private int quality;
-	// The output stream where the JPEG data will be written.
-	private BufferedOutputStream outStream;
+	// Row source for streaming compression, used instead of the image.
+	private RowSource rowSource;
+	// Tables and header bytes shared by every image with this quality and subsampling.
+	private JpegEncoderConfig config;
+	// The sink where the JPEG data will be written.
+	private ByteSink outStream;
+	// Number of MCU rows between restart markers (0 = no restart markers).
+	private int restartInterval;
+	// Whether to build Huffman tables optimized for this image.
+	private boolean optimizeCoding;
+	// Whether to choose coefficients by rate-distortion cost instead of rounding.
+	private boolean trellisQuantization;
+	// Quantized coefficients of the whole image in MCU order, each block in
+	// zigzag order, kept between the two passes of optimized coding.
+	private short[] coefficients;
+	// Component of each block within an MCU.
+	private int[] mcuComponents;
+	// Scans of a progressive JPEG, or null for a baseline JPEG.
+	private Scan[] scanScript;
+	// The output is 1/scaleDenominator of the image size.
+	private int scaleDenominator = 1;
+	// Stage timings and counts, or null when nothing collects them.
+	private EncoderMetrics metrics;
+	// Whether to measure the quality of the output while encoding.
+	private boolean measureQuality;
+	// PSNR and SSIM of the last encode, when measured.
+	private QualityMetrics qualityMetrics;
 
 	// Helper classes that handle specific parts of the JPEG process.
 	private JpegInfo jpegInfo;
-	private DCT dct;
 	private Quantizer quantizer;
 	private Huffman Huffman;
+	private DctEngine dctEngine;
 
 	/*
 	 * JpegEncoder - The JPEG main program which performs a jpeg compression of
-	 * an image.
+	 * an image. Grayscale images are always encoded as YUV_400, with a single
+	 * luma component.
 	 */
 	public JpegEncoder(Image image, int quality, OutputStream outStream, Subsampling subsampling) {
-		// The image to be encoded
-		this.image = image;
-
 		// The compression quality (1-100)
 		// 1 -> good compression, bad quality,
 		// 100 -> bad compression, good quality
-		this.quality = quality;
+		this(image, JpegEncoderConfig.of(quality, subsampling), outStream);
+	}
+
+	/**
+	 * Creates an encoder with the tables of a shared config, so that nothing
+	 * but the image itself is set up per encoder. The image is only read when
+	 * it is compressed.
+	 */
+	public JpegEncoder(Image image, JpegEncoderConfig config, OutputStream outStream) {
+		// The image to be encoded
+		this.image = image;
 
-		// The output stream to write the JPEG
-		this.outStream = new BufferedOutputStream(outStream);
+		// The output stream to write the JPEG. A ByteSink is written to directly,
+		// anything else through a ByteSink with a single buffer.
+		this.outStream = ByteSink.of(outStream);
 
 		// Initialize the helper components
-		this.jpegInfo = new JpegInfo(image, subsampling);
-		this.dct = new DCT();
-		this.quantizer = new Quantizer(quality);
-		this.Huffman = new Huffman();
+		setConfig(JpegInfo.isGrayscale(image) ? config.grayscale() : config);
+		this.metrics = EncoderMetrics.create();
+		this.jpegInfo = new JpegInfo(image, this.config.subsampling, metrics, true);
+	}
+
+	/**
+	 * Creates an encoder that streams the image from a row source. Pixels are
+	 * read, converted and entropy coded one MCU row at a time, so memory use
+	 * depends only on the image width.
+	 */
+	public JpegEncoder(RowSource rowSource, int quality, OutputStream outStream, Subsampling subsampling) {
+		this(rowSource, JpegEncoderConfig.of(quality, subsampling), outStream);
+	}
+
+	/**
+	 * Creates a streaming encoder with the tables of a shared config.
+	 */
+	public JpegEncoder(RowSource rowSource, JpegEncoderConfig config, OutputStream outStream) {
+		this.rowSource = rowSource;
+		this.outStream = ByteSink.of(outStream);
+
+		setConfig(rowSource.isGrayscale() ? config.grayscale() : config);
+		this.metrics = EncoderMetrics.create();
+		this.jpegInfo = new JpegInfo(rowSource.getWidth(), rowSource.getHeight(), this.config.subsampling);
+		this.jpegInfo.metrics = metrics;
+	}
+
+	/**
+	 * Creates an encoder for planes that are already converted, such as the
+	 * levels of compressPyramid() or the tiles of JpegTiler.
+	 */
+	JpegEncoder(JpegInfo jpegInfo, JpegEncoderConfig config, OutputStream outStream) {
+		this.outStream = ByteSink.of(outStream);
+		setConfig(config);
+		this.metrics = EncoderMetrics.create();
+		this.jpegInfo = jpegInfo;
+	}
+
+	/**
+	 * Compresses one image at several sizes, such as a set of thumbnails. The
+	 * image is converted to YCbCr once, and each smaller level is reduced from
+	 * the planes of the level before it by averaging the samples each new
+	 * sample covers. Each level is encoded on the fork-join pool as soon as its
+	 * planes are ready, while the next level is being reduced.
+	 *
+	 * @param sizes      The longest side of each level in pixels, largest first.
+	 *                   Sizes above the image size give the full image.
+	 * @param outStreams The stream each level is written to.
+	 */
+	public static void compressPyramid(Image image, JpegEncoderConfig config, int[] sizes,
+			OutputStream[] outStreams) {
+		if (sizes.length != outStreams.length) {
+			throw new IllegalArgumentException("Need one output stream per size");
+		}
+		for (int i = 1; i < sizes.length; i++) {
+			if (sizes[i] > sizes[i - 1]) {
+				throw new IllegalArgumentException("Sizes must be in decreasing order");
+			}
+		}
+		if (JpegInfo.isGrayscale(image)) {
+			config = config.grayscale();
+		}
+
+		JpegInfo source = new JpegInfo(image, config.subsampling);
+		int longest = Math.max(source.imageWidth, source.imageHeight);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		JpegInfo level = source;
+		for (int i = 0; i < sizes.length; i++) {
+			double scale = Math.min(1.0, sizes[i] / (double) longest);
+			int width = Math.max(1, (int) Math.round(source.imageWidth * scale));
+			int height = Math.max(1, (int) Math.round(source.imageHeight * scale));
+			if (width != level.imageWidth || height != level.imageHeight) {
+				JpegInfo reduced = new JpegInfo(width, height, config.subsampling);
+				reduced.reduceFrom(level);
+				level = reduced;
+			}
+			JpegEncoder encoder = new JpegEncoder(level, config, outStreams[i]);
+			tasks.add(ForkJoinTask.adapt(encoder::compress).fork());
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+	}
+
+	private void setConfig(JpegEncoderConfig config) {
+		this.config = config;
+		this.quantizer = config.quantizer;
+		this.Huffman = config.huffman;
+		this.dctEngine = trellisQuantization ? config.trellisEngine : config.getDctEngine(DctMethod.FLOAT);
+	}
+
+	/**
+	 * Creates the forward DCT, using the Vector API implementation when it is
+	 * available.
+	 */
+	static DCT newDCT() {
+		return loadVectorImplementation("VectorDCT", DCT.class, DCT::new);
+	}
+
+	/**
+	 * Loads an optional class built on the jdk.incubator.vector module. The
+	 * module has to be added at runtime (--add-modules jdk.incubator.vector),
+	 * otherwise, or if the property jpeg.vector is set to false, the scalar
+	 * fallback is used. The fallback is also used when the constructor throws,
+	 * which the vector classes do when the hardware lacks the vector size
+	 * they are written for.
+	 */
+	static <T> T loadVectorImplementation(String className, Class<T> type, Supplier<T> fallback) {
+		if (!Boolean.parseBoolean(System.getProperty("jpeg.vector", "true"))
+				|| !ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			return fallback.get();
+		}
+		try {
+			return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return fallback.get();
+		}
+	}
+
+	/**
+	 * Selects the DCT and quantization implementation. The integer methods
+	 * give bit-identical output on every JVM.
+	 */
+	public void setDctMethod(DctMethod method) {
+		this.dctEngine = config.getDctEngine(method);
+	}
+
+	/**
+	 * Selects the RGB to YCbCr conversion. FIXED gives the same integer
+	 * samples on every JVM, each within 0.51 of the FLOAT value. Has to be set
+	 * before the image is compressed.
+	 */
+	public void setColorMethod(ColorMethod method) {
+		jpegInfo.colorConverter = method == ColorMethod.FIXED ? FIXED_COLOR_CONVERTER : DEFAULT_COLOR_CONVERTER;
+	}
+
+	/**
+	 * Enables rate-distortion optimized (trellis) quantization, in the spirit
+	 * of mozjpeg. Instead of rounding each coefficient on its own, every block
+	 * is quantized to the values that minimize the squared error plus lambda
+	 * times the bits they take with the standard Huffman tables, which often
+	 * lowers a coefficient or zeroes the tail of a block. Uses the FLOAT DCT,
+	 * and replaces the DCT method setting while enabled.
+	 */
+	public void setTrellisQuantization(boolean trellisQuantization) {
+		this.trellisQuantization = trellisQuantization;
+		this.dctEngine = trellisQuantization ? config.trellisEngine : config.getDctEngine(DctMethod.FLOAT);
+	}
+
+	/**
+	 * Enables restart markers every given number of MCU rows. Each restart
+	 * segment is independent of the others, so segments are encoded in
+	 * parallel on the fork-join pool. A value of 0 disables restart markers.
+	 * The interval is written in MCUs to the 16-bit DRI field, so it is
+	 * lowered to the most rows that fit.
+	 *
+	 * @throws IllegalArgumentException if mcuRows is positive and a single
+	 *                                  MCU row has more than 65535 MCUs, such
+	 *                                  as an image over 524280 pixels wide
+	 *                                  with 4:4:4 subsampling
+	 */
+	public void setRestartInterval(int mcuRows) {
+		if (mcuRows > 0 && getMcusPerRow() > 0xFFFF) {
+			throw new IllegalArgumentException("Restart interval of one MCU row (" + getMcusPerRow()
+					+ " MCUs) does not fit in the DRI segment");
+		}
+		this.restartInterval = Math.max(0, mcuRows);
+	}
+
+	/**
+	 * Enables optimized Huffman tables, like libjpeg's -optimize. The image is
+	 * first quantized into a coefficient buffer, symbol frequencies are
+	 * gathered from it, and the buffer is then entropy coded with the tables
+	 * built from them. Has no effect in streaming mode.
+	 */
+	public void setOptimizeCoding(boolean optimizeCoding) {
+		this.optimizeCoding = optimizeCoding;
+	}
+
+	/**
+	 * Measures PSNR and SSIM against the converted image while encoding. Each
+	 * block is dequantized and inverse transformed right after it is
+	 * quantized, so there is no separate decode pass. The results are
+	 * available from getQualityMetrics() afterwards.
+	 */
+	public void setMeasureQuality(boolean measureQuality) {
+		this.measureQuality = measureQuality;
+	}
+
+	/**
+	 * The PSNR and SSIM of the last compress() or compressToTargetSize(), or
+	 * null if quality was not measured.
+	 */
+	public QualityMetrics getQualityMetrics() {
+		return qualityMetrics;
+	}
+
+	/**
+	 * Enables or disables progressive (SOF2) encoding with the default scan
+	 * script, which sends the DC coefficients first and then the AC bands
+	 * with successive-approximation refinement, as libjpeg's
+	 * jpeg_simple_progression() does.
+	 */
+	public void setProgressive(boolean progressive) {
+		this.scanScript = progressive ? Scan.defaultScript(jpegInfo.numComponents) : null;
+	}
+
+	/**
+	 * Enables progressive (SOF2) encoding with the given scan script.
+	 * Progressive JPEGs always use Huffman tables optimized for each scan and
+	 * are written without restart markers. Has no effect in streaming mode.
+	 */
+	public void setScanScript(Scan... scans) {
+		for (Scan scan : scans) {
+			for (int component : scan.components) {
+				if (component >= jpegInfo.numComponents) {
+					throw new IllegalArgumentException("Scan covers missing component: " + component);
+				}
+			}
+		}
+		this.scanScript = scans.clone();
+	}
+
+	/**
+	 * Scales the output down to 1/2, 1/4 or 1/8 of the image size in the DCT
+	 * domain, for quick previews. Each 8x8 block of the converted image is
+	 * transformed once and only its low-frequency 4x4, 2x2 or 1x1 corner is
+	 * transformed back, which gives the samples of the smaller image without a
+	 * separate resampling pass. Has no effect in streaming mode.
+	 */
+	public void setScale(int denominator) {
+		if (denominator != 1 && denominator != 2 && denominator != 4 && denominator != 8) {
+			throw new IllegalArgumentException("Scale must be 1/1, 1/2, 1/4 or 1/8: 1/" + denominator);
+		}
+		this.scaleDenominator = denominator;
+	}
+
+	/**
+	 * Replaces the converted image with its scaled-down version, once.
+	 */
+	private void applyScale() {
+		if (scaleDenominator == 1 || rowSource != null) {
+			return;
+		}
+		int width = (jpegInfo.imageWidth + scaleDenominator - 1) / scaleDenominator;
+		int height = (jpegInfo.imageHeight + scaleDenominator - 1) / scaleDenominator;
+		JpegInfo scaled = new JpegInfo(width, height, config.subsampling);
+		jpegInfo.convertPlanes();
+		scaled.scaleFrom(jpegInfo, 8 / scaleDenominator, config.dct);
+		jpegInfo = scaled;
+		scaleDenominator = 1;
+	}
+
+	private boolean isProgressive() {
+		return scanScript != null && rowSource == null;
 	}
 
 	/**
 	 * The main method to start the compression process.
 	 */
 	public void compress() {
+		applyScale();
+		qualityMetrics = measureQuality ? new QualityMetrics() : null;
+		// Only a plain baseline encode converts the image one MCU at a time.
+		if (isProgressive() || optimizeCoding || measureQuality || !jpegInfo.convertsByMcu()) {
+			jpegInfo.convertPlanes();
+		}
+		if (isProgressive() || (optimizeCoding && rowSource == null)) {
+			bufferCoefficients();
+		}
+		writeImage();
+		publishMetrics();
+	}
+
+	/**
+	 * Fills in the image-wide counts and reports the metrics, once.
+	 */
+	private void publishMetrics() {
+		if (metrics == null) {
+			return;
+		}
+		int mcuRows = jpegInfo.paddedHeight / (8 * jpegInfo.MaxVsampleFactor);
+		int blocksPerMcu = jpegInfo.HsampleFactor[0] * jpegInfo.VsampleFactor[0]
+				+ jpegInfo.HsampleFactor[1] * jpegInfo.VsampleFactor[1]
+				+ jpegInfo.HsampleFactor[2] * jpegInfo.VsampleFactor[2];
+		metrics.width = jpegInfo.imageWidth;
+		metrics.height = jpegInfo.imageHeight;
+		metrics.quality = config.quality;
+		metrics.mcus = (long) mcuRows * getMcusPerRow();
+		metrics.blocks = metrics.mcus * blocksPerMcu;
+		metrics.publish();
+		metrics = null;
+	}
+
+	/**
+	 * Compresses the image at the highest quality whose output fits in
+	 * maxBytes. The image is converted and transformed only once: each
+	 * quality tried by the binary search re-quantizes the cached DCT output
+	 * and estimates the coded size from its symbol counts. The chosen quality
+	 * is then encoded for real, stepping down while the output is still too
+	 * large. If even quality 1 does not fit, the image is written at quality 1.
+	 * The DCT output that is cached comes from the FLOAT method, so the DCT
+	 * method setting is not used here. Afterwards the encoder has its own
+	 * quality and DCT method again, and the coefficient buffer is released,
+	 * so a later compress() encodes the image as it would have before.
+	 *
+	 * @return The quality the image was written with.
+	 */
+	public int compressToTargetSize(long maxBytes) {
+		if (rowSource != null) {
+			throw new IllegalStateException("Target size needs the whole image, not a row source");
+		}
+		// Each probe replaces the config with the tables of its quality.
+		JpegEncoderConfig originalConfig = config;
+		DctEngine originalEngine = dctEngine;
+		try {
+			return searchTargetSize(maxBytes);
+		} finally {
+			setConfig(originalConfig);
+			dctEngine = originalEngine;
+			coefficients = null;
+		}
+	}
+
+	private int searchTargetSize(long maxBytes) {
+		applyScale();
+		jpegInfo.convertPlanes();
+		qualityMetrics = measureQuality ? new QualityMetrics() : null;
+		allocateCoefficients();
+		float[] transformed = new float[coefficients.length];
+		forEachMcuRowChunk((firstRow, endRow) -> {
+			long start = System.nanoTime();
+			transformMcuRows(firstRow, endRow, transformed);
+			mergeTaskNanos(EncoderMetrics.Stage.DCT, System.nanoTime() - start);
+		});
+
+		int low = 1;
+		int high = 100;
+		int best = 1;
+		while (low <= high) {
+			int probe = (low + high) >>> 1;
+			requantize(transformed, probe, false);
+			if (estimateSize() <= maxBytes) {
+				best = probe;
+				low = probe + 1;
+			} else {
+				high = probe - 1;
+			}
+		}
+
+		// The estimate ignores progressive coding and rounds stuffing, so check it.
+		ByteSink target = outStream;
+		// Start from the usual size of such an image; output over the budget
+		// is only kept long enough to be measured.
+		long cap = Math.min(maxBytes + 4096, config.maxOutputSize(jpegInfo.imageWidth, jpegInfo.imageHeight));
+		MemorySink buffer = ByteSink.toMemory(
+				(int) Math.min(config.estimateOutputSize(jpegInfo.imageWidth, jpegInfo.imageHeight), cap));
+		outStream = buffer;
+		for (int quality = best;; quality--) {
+			requantize(transformed, quality, qualityMetrics != null);
+			buffer.reset();
+			writeImage();
+			if (buffer.size() <= maxBytes || quality == 1) {
+				outStream = target;
+				long start = System.nanoTime();
+				try {
+					outStream.write(buffer.toByteBuffer());
+					outStream.flush();
+				} catch (IOException e) {
+					System.out.println("IO Error: " + e.getMessage());
+				}
+				addNanos(EncoderMetrics.Stage.IO, System.nanoTime() - start);
+				publishMetrics();
+				return quality;
+			}
+		}
+	}
+
+	/**
+	 * Quantizes the cached DCT output of the whole image with the tables of
+	 * the given quality into the coefficient buffer, measuring the quality of
+	 * the result if asked to.
+	 */
+	private void requantize(float[] transformed, int quality, boolean measure) {
+		setConfig(JpegEncoderConfig.of(quality, config.subsampling));
+		if (measure) {
+			qualityMetrics.reset();
+		}
+		Plane[] planes = { jpegInfo.y, jpegInfo.cb, jpegInfo.cr };
+		int[] firstBlock = new int[3];
+		for (int component = 1; component < 3; component++) {
+			firstBlock[component] = firstBlock[component - 1]
+					+ jpegInfo.HsampleFactor[component - 1] * jpegInfo.VsampleFactor[component - 1];
+		}
+		forEachMcuRowChunk((firstRow, endRow) -> {
+			long start = System.nanoTime();
+			BlockScratch scratch = new BlockScratch();
+			scratch.quality = measure ? new QualityMetrics() : null;
+			int blocksPerMcuRow = getMcusPerRow() * mcuComponents.length;
+			for (int block = firstRow * blocksPerMcuRow; block < endRow * blocksPerMcuRow; block++) {
+				int component = mcuComponents[block % mcuComponents.length];
+				System.arraycopy(transformed, block * 64, scratch.coeffs, 0, 64);
+				if (trellisQuantization) {
+					scratch.nonzero = quantizer.quantizeTrellis(scratch, component == 0,
+							Huffman.getAcTable(component == 0));
+				} else {
+					scratch.nonzero = quantizer.quantizeInto(scratch.coeffs, scratch.workspace, scratch.quantized,
+							component == 0);
+				}
+				for (int k = 0; k < 64; k++) {
+					coefficients[block * 64 + k] = (short) scratch.quantized[k];
+				}
+				if (measure) {
+					// Position of the block from its index in MCU order
+					int mcu = block / mcuComponents.length;
+					int index = block % mcuComponents.length - firstBlock[component];
+					int h = jpegInfo.HsampleFactor[component];
+					int v = jpegInfo.VsampleFactor[component];
+					int x = (mcu % getMcusPerRow() * h + index % h) * 8;
+					int y = (mcu / getMcusPerRow() * v + index / h) * 8;
+					measureBlock(scratch, component, planes[component], x, y);
+				}
+			}
+			if (measure) {
+				qualityMetrics.merge(scratch.quality);
+			}
+			mergeTaskNanos(EncoderMetrics.Stage.QUANTIZE, System.nanoTime() - start);
+		});
+	}
+
+	/**
+	 * Estimates the size of the JPEG written from the coefficient buffer: the
+	 * headers, the Huffman-coded bits from the symbol counts, one stuffed byte
+	 * per 256 bytes of entropy-coded data, and the restart markers.
+	 */
+	private long estimateSize() {
+		long[][] dcFrequencies = new long[2][257];
+		long[][] acFrequencies = new long[2][257];
+		countSymbols(dcFrequencies, acFrequencies);
+
+		Huffman huffman = optimizeCoding || isProgressive() ? buildOptimalHuffman(dcFrequencies, acFrequencies)
+				: this.Huffman;
+		long bits = 0;
+		int tables = jpegInfo.numComponents == 1 ? 1 : 2;
+		for (int table = 0; table < tables; table++) {
+			bits += huffman.codedBits(dcFrequencies[table], acFrequencies[table], table == 0);
+		}
+		long dataBytes = (bits + 7) / 8;
+
+		long size = config.tableHeader.length + 10 + 3 * jpegInfo.numComponents + config.scanHeader.length + 2;
+		size += huffman == config.huffman ? config.huffmanHeader.length
+				: getHuffmanHeaderLength(huffman, jpegInfo.numComponents);
+		if (restartInterval > 0) {
+			int mcuRows = jpegInfo.paddedHeight / (8 * jpegInfo.MaxVsampleFactor);
+			int segments = (mcuRows + getRestartRows() - 1) / getRestartRows();
+			size += 6 + 3 * (segments - 1);
+		}
+		return size + dataBytes + dataBytes / 256;
+	}
+
+	/**
+	 * Writes the whole JPEG. The coefficient buffer is entropy coded when
+	 * there is one, otherwise the blocks are transformed as they are coded.
+	 */
+	private void writeImage() {
+		if (optimizeCoding && coefficients != null && !isProgressive()) {
+			this.Huffman = buildOptimalHuffman();
+		}
+
+		long firstByte = outStream.position();
+		if (metrics != null) {
+			// Only the counts of the last attempt of compressToTargetSize() stay.
+			metrics.resetCounts();
+		}
+		long start = System.nanoTime();
 		writeHeaders();
-		writeCompressedData();
+		addNanos(EncoderMetrics.Stage.IO, System.nanoTime() - start);
+		if (isProgressive()) {
+			writeProgressiveScans();
+		} else if (rowSource != null) {
+			writeStreamedData();
+		} else {
+			writeCompressedData();
+		}
 
+		start = System.nanoTime();
 		// Write the End of Image marker.
 		try {
 			outStream.write(new byte[] { (byte) 0xFF, (byte) 0xD9 });
@@ -86,6 +630,32 @@ public class JpegEncoder {
 		} catch (IOException e) {
 			System.out.println("IO Error: " + e.getMessage());
 		}
+		if (metrics != null) {
+			metrics.add(EncoderMetrics.Stage.IO, System.nanoTime() - start);
+			metrics.bytes = outStream.position() - firstByte;
+		}
+	}
+
+	/**
+	 * Adds time to a stage when metrics are collected, from the thread that
+	 * owns the encoder.
+	 */
+	private void addNanos(EncoderMetrics.Stage stage, long nanos) {
+		if (metrics != null) {
+			metrics.add(stage, nanos);
+		}
+	}
+
+	/**
+	 * Adds time to a stage when metrics are collected, from a task running
+	 * in parallel with others.
+	 */
+	private void mergeTaskNanos(EncoderMetrics.Stage stage, long nanos) {
+		if (metrics != null) {
+			EncoderMetrics task = EncoderMetrics.forTask();
+			task.add(stage, nanos);
+			metrics.merge(task);
+		}
 	}
 
 	/**
@@ -94,60 +664,80 @@ public class JpegEncoder {
 	 */
 	private void writeHeaders() {
 		try {
-			// Start of Image
-			outStream.write(new byte[] { (byte) 0xFF, (byte) 0xD8 });
-
-			// JFIF Header
-			byte[] jfif = {
-					(byte) 0xff, (byte) 0xe0, (byte) 0x00, (byte) 0x10,
-					(byte) 0x4a, (byte) 0x46, (byte) 0x49, (byte) 0x46,
-					(byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x00,
-					(byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x01,
-					(byte) 0x00, (byte) 0x00
-			};
-			outStream.write(jfif);
+			// Start of Image, JFIF header and DQT, as prebuilt by the config
+			outStream.write(config.tableHeader);
+
+			// write Start of Frame
+			writeSOF();
+
+			// Each progressive scan writes its own DHT and SOS.
+			if (isProgressive()) {
+				return;
+			}
+
+			// write DHT
+			if (Huffman == config.huffman) {
+				outStream.write(config.huffmanHeader);
+			} else {
+				writeDHT(outStream, Huffman, jpegInfo.numComponents);
+			}
+
+			// write Define Restart Interval
+			if (restartInterval > 0) {
+				writeDRI();
+			}
+
+			// write Start of Scan
+			outStream.write(config.scanHeader);
 		} catch (IOException e) {
 			System.out.println("IO Error: " + e.getMessage());
 		}
+	}
 
-		// write DQT
-		writeDQT();
-
-		// write Start of Frame
-		writeSOF();
-
-		// write DHT
-		writeDHT();
+	/**
+	 * Start of Image marker and JFIF header
+	 */
+	static void writeJFIF(OutputStream out) throws IOException {
+		// Start of Image
+		out.write(new byte[] { (byte) 0xFF, (byte) 0xD8 });
 
-		// write Start of Scan
-		writeSOS();
+		// JFIF Header
+		byte[] jfif = {
+				(byte) 0xff, (byte) 0xe0, (byte) 0x00, (byte) 0x10,
+				(byte) 0x4a, (byte) 0x46, (byte) 0x49, (byte) 0x46,
+				(byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x00,
+				(byte) 0x00, (byte) 0x01, (byte) 0x00, (byte) 0x01,
+				(byte) 0x00, (byte) 0x00
+		};
+		out.write(jfif);
 	}
 
 	/**
 	 * Quantization tables segment.
 	 * These tables are used to quantize the DCT coefficients
 	 */
-	private void writeDQT() {
-		try {
-			byte[] DQT = {
-					(byte) 0xFF, (byte) 0xDB,
-					(byte) 0x00, (byte) 0x84
-			};
-			outStream.write(DQT);
+	static void writeDQT(OutputStream out, Quantizer quantizer, int numComponents) throws IOException {
+		int length = numComponents == 1 ? 0x43 : 0x84;
+		byte[] DQT = {
+				(byte) 0xFF, (byte) 0xDB,
+				(byte) 0x00, (byte) length
+		};
+		out.write(DQT);
 
-			// Luminance quantization table.
-			outStream.write(0x00);
-			for (int i = 0; i < 64; i++) {
-				outStream.write(quantizer.getQuantumLuminance()[JpegInfo.JPEG_NATURAL_ORDER[i]]);
-			}
+		// Luminance quantization table.
+		out.write(0x00);
+		for (int i = 0; i < 64; i++) {
+			out.write(quantizer.getQuantumLuminance()[JpegInfo.JPEG_NATURAL_ORDER[i]]);
+		}
 
-			// Chrominance quantization table.
-			outStream.write(0x01);
-			for (int i = 0; i < 64; i++) {
-				outStream.write(quantizer.getQuantumChrominance()[JpegInfo.JPEG_NATURAL_ORDER[i]]);
-			}
-		} catch (IOException e) {
-			System.out.println("IO Error: " + e.getMessage());
+		if (numComponents == 1) {
+			return;
+		}
+
+		// Chrominance quantization table.
+		out.write(0x01);
+		for (int i = 0; i < 64; i++) {
+			out.write(quantizer.getQuantumChrominance()[JpegInfo.JPEG_NATURAL_ORDER[i]]);
 		}
 	}
 
@@ -161,21 +751,23 @@ public class JpegEncoder {
 			byte ySample = (byte) ((jpegInfo.HsampleFactor[0] << 4) | jpegInfo.VsampleFactor[0]);
 			byte cSample = (byte) ((jpegInfo.HsampleFactor[1] << 4) | jpegInfo.VsampleFactor[1]);
 
+			int components = jpegInfo.numComponents;
 			byte[] sof = {
-					(byte) 0xFF, (byte) 0xC0,
-					(byte) 0x00, (byte) 17,
+					(byte) 0xFF, (byte) (isProgressive() ? 0xC2 : 0xC0),
+					(byte) 0x00, (byte) (8 + 3 * components),
 					(byte) 8,
 					(byte) ((jpegInfo.imageHeight >> 8) & 0xFF),
 					(byte) (jpegInfo.imageHeight & 0xFF),
 					(byte) ((jpegInfo.imageWidth >> 8) & 0xFF),
 					(byte) (jpegInfo.imageWidth & 0xFF),
-					(byte) 3,
+					(byte) components,
 					// Component data for each of the 3 components
 					(byte) 1, ySample, (byte) 0, // Y
 					(byte) 2, cSample, (byte) 1, // Cb
 					(byte) 3, cSample, (byte) 1, // Cr
 			};
-			outStream.write(sof);
+			// A grayscale frame ends after the Y component.
+			outStream.write(sof, 0, 10 + 3 * components);
 		} catch (IOException e) {
 
 		}
@@ -186,34 +778,64 @@ public class JpegEncoder {
 	 * This defines the codes for both DC and AC
 	 * coefficients for both luminance and chrominance.
 	 */
-	private void writeDHT() {
+	static void writeDHT(OutputStream out, Huffman huffman, int numComponents) throws IOException {
 		// DC Luminance
-		writeDHTTable(Huffman.getDcLuminanceBits(), Huffman.getDcLuminanceVal(), 0, true);
+		writeDHTTable(out, huffman.getDcLuminanceBits(), huffman.getDcLuminanceVal(), 0, true);
 		// AC Luminance
-		writeDHTTable(Huffman.getAcLuminanceBits(), Huffman.getAcLuminanceVal(), 0, false);
+		writeDHTTable(out, huffman.getAcLuminanceBits(), huffman.getAcLuminanceVal(), 0, false);
+		if (numComponents == 1) {
+			return;
+		}
 		// DC Chrominance
-		writeDHTTable(Huffman.getDcChrominanceBits(), Huffman.getDcChrominanceVal(), 1, true);
+		writeDHTTable(out, huffman.getDcChrominanceBits(), huffman.getDcChrominanceVal(), 1, true);
 		// AC Chrominance
-		writeDHTTable(Huffman.getAcChrominanceBits(), Huffman.getAcChrominanceVal(), 1, false);
+		writeDHTTable(out, huffman.getAcChrominanceBits(), huffman.getAcChrominanceVal(), 1, false);
 	}
 
 	/**
 	 * Helper method to write a Huffman table to the output stream.
 	 */
-	private void writeDHTTable(int[] bits, int[] values, int tableID, boolean isDC) {
+	static void writeDHTTable(OutputStream out, int[] bits, int[] values, int tableID, boolean isDC)
+			throws IOException {
+		int length = 2 + 17 + values.length;
+		out.write((byte) 0xFF);
+		out.write((byte) 0xC4);
+		out.write((byte) ((length >> 8) & 0xFF));
+		out.write((byte) (length & 0xFF));
+		out.write((isDC ? 0x00 : 0x10) | tableID);
+		for (int bit : bits) {
+			out.write(bit);
+		}
+		for (int value : values) {
+			out.write(value);
+		}
+	}
+
+	/**
+	 * Length in bytes of the DHT segments writeDHT() writes.
+	 */
+	static int getHuffmanHeaderLength(Huffman huffman, int numComponents) {
+		int length = 2 * (4 + 17) + huffman.getDcLuminanceVal().length + huffman.getAcLuminanceVal().length;
+		if (numComponents == 3) {
+			length += 2 * (4 + 17) + huffman.getDcChrominanceVal().length + huffman.getAcChrominanceVal().length;
+		}
+		return length;
+	}
+
+	/**
+	 * Define Restart Interval segment
+	 * Specifies the number of MCUs between restart markers.
+	 */
+	private void writeDRI() {
 		try {
-			int length = 2 + 17 + values.length;
-			outStream.write((byte) 0xFF);
-			outStream.write((byte) 0xC4);
-			outStream.write((byte) ((length >> 8) & 0xFF));
-			outStream.write((byte) (length & 0xFF));
-			outStream.write((isDC ? 0x00 : 0x10) | tableID);
-			for (int bit : bits) {
-				outStream.write(bit);
-			}
-			for (int value : values) {
-				outStream.write(value);
-			}
+			int interval = getRestartRows() * getMcusPerRow();
+			byte[] dri = {
+					(byte) 0xFF, (byte) 0xDD,
+					(byte) 0x00, (byte) 0x04,
+					(byte) ((interval >> 8) & 0xFF),
+					(byte) (interval & 0xFF)
+			};
+			outStream.write(dri);
 		} catch (IOException e) {
 			System.out.println("IO Error: " + e.getMessage());
 		}
@@ -223,433 +845,2578 @@ public class JpegEncoder {
 	 * Start of Scan segment
 	 * Indicates the beginning of the compressed image data itself
 	 */
-	private void writeSOS() {
-		try {
+	static void writeSOS(OutputStream out, int numComponents) throws IOException {
+		if (numComponents == 1) {
 			byte[] sos = {
 					(byte) 0xFF, (byte) 0xDA,
-					(byte) 0x00, (byte) 12,
-					(byte) 0x03,
+					(byte) 0x00, (byte) 8,
+					(byte) 0x01,
 					(byte) 1, (byte) 0x00,
-					(byte) 2, (byte) 0x11,
-					(byte) 3, (byte) 0x11,
 					(byte) 0x00, (byte) 0x3F, (byte) 0x00
 			};
-			outStream.write(sos);
-		} catch (IOException e) {
-			System.out.println("IO Error: " + e.getMessage());
+			out.write(sos);
+			return;
 		}
+		byte[] sos = {
+				(byte) 0xFF, (byte) 0xDA,
+				(byte) 0x00, (byte) 12,
+				(byte) 0x03,
+				(byte) 1, (byte) 0x00,
+				(byte) 2, (byte) 0x11,
+				(byte) 3, (byte) 0x11,
+				(byte) 0x00, (byte) 0x3F, (byte) 0x00
+		};
+		out.write(sos);
 	}
 
 	/**
-	 * Writes the compressed bitstream to the output.
+	 * Writes the scans of a progressive JPEG from the coefficient buffer. Each
+	 * scan is run twice: once to gather symbol frequencies for its Huffman
+	 * tables, and once to encode it with them.
 	 */
+	private void writeProgressiveScans() {
+		ProgressiveEncoder encoder = new ProgressiveEncoder(jpegInfo, coefficients, mcuComponents, getMcusPerRow());
+		if (metrics != null) {
+			metrics.countCoefficients(coefficients);
+		}
+		for (Scan scan : scanScript) {
+			long start = System.nanoTime();
+			HuffmanTable[] dcTables = new HuffmanTable[2];
+			HuffmanTable[] acTables = new HuffmanTable[2];
+			long[][][] frequencies = encoder.gatherStatistics(scan);
+			addNanos(EncoderMetrics.Stage.HUFFMAN, System.nanoTime() - start);
 
-	private void writeCompressedData() {
-		int[] lastDcValue = new int[3];
-		BitStream bitStream = new BitStream(outStream);
-
-		int blockWidth = 8 * jpegInfo.MaxHsampleFactor;
-		int blockHeight = 8 * jpegInfo.MaxVsampleFactor;
-
-		// Iterate over the image
-		for (int y = 0; y < jpegInfo.paddedHeight; y += blockHeight) {
-			for (int x = 0; x < jpegInfo.paddedWidth; x += blockWidth) {
-
-				// Process Y components for this block
-				for (int i = 0; i < jpegInfo.VsampleFactor[0]; i++) {
-					for (int j = 0; j < jpegInfo.HsampleFactor[0]; j++) {
-						double[][] yBlock = getBlock(jpegInfo.y, x + j * 8, y + i * 8);
-						int[] quantizedY = quantizer.quantizeBlock(dct.forwardDCT(yBlock), true);
-						lastDcValue[0] = Huffman.encodeBlock(bitStream, quantizedY, lastDcValue[0], true);
-					}
-				}
-
-				// Process Cb component(s) for this block
-				for (int i = 0; i < jpegInfo.VsampleFactor[1]; i++) {
-					for (int j = 0; j < jpegInfo.HsampleFactor[1]; j++) {
-						double[][] cbBlock = getBlock(jpegInfo.cb, (x / jpegInfo.MaxHsampleFactor) + j * 8,
-								(y / jpegInfo.MaxVsampleFactor) + i * 8);
-						int[] quantizedCb = quantizer.quantizeBlock(dct.forwardDCT(cbBlock), false);
-						lastDcValue[1] = Huffman.encodeBlock(bitStream, quantizedCb, lastDcValue[1], false);
-					}
-				}
-
-				// Process Cr component(s) for this block
-				for (int i = 0; i < jpegInfo.VsampleFactor[2]; i++) {
-					for (int j = 0; j < jpegInfo.HsampleFactor[2]; j++) {
-						double[][] crBlock = getBlock(jpegInfo.cr, (x / jpegInfo.MaxHsampleFactor) + j * 8,
-								(y / jpegInfo.MaxVsampleFactor) + i * 8);
-						int[] quantizedCr = quantizer.quantizeBlock(dct.forwardDCT(crBlock), false);
-						lastDcValue[2] = Huffman.encodeBlock(bitStream, quantizedCr, lastDcValue[2], false);
+			// Refinement of DC coefficients uses no Huffman tables.
+			if (scan.ss > 0 || scan.ah == 0) {
+				boolean isDC = scan.ss == 0;
+				HuffmanTable[] tables = isDC ? dcTables : acTables;
+				for (int component : scan.components) {
+					int table = component == 0 ? 0 : 1;
+					if (tables[table] == null) {
+						int[][] optimal = HuffmanTable.generateOptimalTable(frequencies[isDC ? 0 : 1][table]);
+						tables[table] = new HuffmanTable(optimal[0], optimal[1]);
+						try {
+							writeDHTTable(outStream, optimal[0], optimal[1], table, isDC);
+						} catch (IOException e) {
+							System.out.println("IO Error: " + e.getMessage());
+						}
 					}
 				}
 			}
+
+			writeProgressiveSOS(scan);
+			start = System.nanoTime();
+			BitStream bitStream = new BitStream(outStream, metrics);
+			encoder.encodeScan(scan, dcTables, acTables, bitStream);
+			addNanos(EncoderMetrics.Stage.HUFFMAN, System.nanoTime() - start);
+			bitStream.flush();
 		}
-		bitStream.flush(); // Write any remaining bits in the buffer.
 	}
 
 	/**
-	 * Extracts an 8x8 block of data from a 2D float array.
+	 * Start of Scan segment of a progressive scan
 	 */
-	private double[][] getBlock(float[][] component, int x, int y) {
-		double[][] block = new double[8][8];
-		for (int i = 0; i < 8; i++) {
-			for (int j = 0; j < 8; j++) {
-				block[i][j] = component[y + i][x + j];
+	private void writeProgressiveSOS(Scan scan) {
+		try {
+			int length = 6 + 2 * scan.components.length;
+			outStream.write(0xFF);
+			outStream.write(0xDA);
+			outStream.write((length >> 8) & 0xFF);
+			outStream.write(length & 0xFF);
+			outStream.write(scan.components.length);
+			for (int component : scan.components) {
+				int table = component == 0 ? 0 : 1;
+				outStream.write(component + 1);
+				outStream.write(scan.ss == 0 ? table << 4 : table);
 			}
+			outStream.write(scan.ss);
+			outStream.write(scan.se);
+			outStream.write((scan.ah << 4) | scan.al);
+		} catch (IOException e) {
+			System.out.println("IO Error: " + e.getMessage());
 		}
-		return block;
 	}
 
-	/*
-	 * JpegInfo - Given an image, sets default information about it and divides
-	 * it into its constituant components, downsizing those that need to be.
+	/**
+	 * Writes the compressed bitstream to the output.
 	 */
-	static class JpegInfo {
-		int imageWidth;
-		int imageHeight;
-		int paddedWidth;
-		int paddedHeight;
-
-		// Sampling factors for each component (Y, Cb, Cr)
-		int[] HsampleFactor = new int[3];
-		int[] VsampleFactor = new int[3];
-		int MaxHsampleFactor;
-		int MaxVsampleFactor;
+	private void writeCompressedData() {
+		int mcuRows = jpegInfo.paddedHeight / (8 * jpegInfo.MaxVsampleFactor);
 
-		// 2D arrays to hold the Y, Cb, and Cr components of the image.
-		float[][] y;
-		float[][] cb;
-		float[][] cr;
+		if (restartInterval == 0) {
+			EncoderMetrics taskMetrics = metrics == null ? null : EncoderMetrics.forTask();
+			BitStream bitStream = new BitStream(outStream, taskMetrics);
+			encodeMcuRows(bitStream, 0, mcuRows);
+			bitStream.flush(); // Write any remaining bits in the buffer.
+			if (taskMetrics != null) {
+				metrics.merge(taskMetrics);
+			}
+			return;
+		}
+
+		// Each restart segment is encoded into its own buffer on a fork-join worker.
+		int restartRows = getRestartRows();
+		List<SegmentTask> segments = new ArrayList<>();
+		for (int row = 0; row < mcuRows; row += restartRows) {
+			segments.add(new SegmentTask(row, Math.min(row + restartRows, mcuRows)));
+		}
+		ForkJoinTask.invokeAll(segments);
+
+		// Join the segments in order, separated by RSTn markers.
+		long start = System.nanoTime();
+		try {
+			for (int i = 0; i < segments.size(); i++) {
+				if (i > 0) {
+					outStream.write(0xFF);
+					outStream.write(0xD0 + ((i - 1) & 7));
+				}
+				outStream.write(segments.get(i).join());
+			}
+		} catch (IOException e) {
+			System.out.println("IO Error: " + e.getMessage());
+		}
+		addNanos(EncoderMetrics.Stage.IO, System.nanoTime() - start);
+	}
+
+	/**
+	 * Writes the compressed bitstream while reading the image one MCU row at a
+	 * time from the row source. Only one strip of pixels and planes is held in
+	 * memory.
+	 */
+	private void writeStreamedData() {
+		int stripHeight = 8 * jpegInfo.MaxVsampleFactor;
+		int mcuRows = jpegInfo.paddedHeight / stripHeight;
+		int restartRows = restartInterval > 0 ? getRestartRows() : mcuRows;
+
+		int[] pixels = new int[jpegInfo.imageWidth * stripHeight];
+		jpegInfo.allocatePlanes(stripHeight);
+
+		int[] lastDcValue = new int[3];
+		BlockScratch scratch = new BlockScratch();
+		scratch.metrics = metrics;
+		scratch.quality = qualityMetrics;
+		BitStream bitStream = new BitStream(outStream, metrics);
+		try {
+			for (int row = 0; row < mcuRows; row++) {
+				if (row > 0 && row % restartRows == 0) {
+					bitStream.flush();
+					outStream.write(0xFF);
+					outStream.write(0xD0 + ((row / restartRows - 1) & 7));
+					Arrays.fill(lastDcValue, 0);
+				}
+
+				int firstRow = row * stripHeight;
+				int imageRows = Math.min(stripHeight, jpegInfo.imageHeight - firstRow);
+				scratch.firstImageRow = firstRow;
+				long start = System.nanoTime();
+				rowSource.readRows(firstRow, imageRows, pixels);
+				addNanos(EncoderMetrics.Stage.PIXEL_FETCH, System.nanoTime() - start);
+				jpegInfo.clearChroma();
+				jpegInfo.convertRows(pixels, 0, jpegInfo.imageWidth, firstRow, stripHeight, 0);
+				encodeMcuRow(bitStream, 0, scratch, lastDcValue);
+			}
+		} catch (IOException e) {
+			System.out.println("IO Error: " + e.getMessage());
+		}
+		bitStream.flush(); // Write any remaining bits in the buffer.
+	}
+
+	/**
+	 * Encodes the MCU rows in the range [firstRow, endRow). The DC predictions
+	 * start from zero, as they do at the beginning of each restart segment.
+	 */
+	private void encodeMcuRows(BitStream bitStream, int firstRow, int endRow) {
+		int[] lastDcValue = new int[3];
+		BlockScratch scratch = new BlockScratch();
+		scratch.metrics = bitStream.metrics;
+		scratch.quality = qualityMetrics != null && coefficients == null ? new QualityMetrics() : null;
+
+		int blockHeight = 8 * jpegInfo.MaxVsampleFactor;
+		for (int row = firstRow; row < endRow; row++) {
+			if (coefficients != null) {
+				encodeBufferedMcuRow(bitStream, row, scratch, lastDcValue);
+			} else if (jpegInfo.convertsByMcu()) {
+				encodeFusedMcuRow(bitStream, row * blockHeight, scratch, lastDcValue);
+			} else {
+				encodeMcuRow(bitStream, row * blockHeight, scratch, lastDcValue);
+			}
+		}
+		if (scratch.quality != null) {
+			qualityMetrics.merge(scratch.quality);
+		}
+	}
+
+	/**
+	 * Entropy codes one MCU row from the coefficient buffer.
+	 */
+	private void encodeBufferedMcuRow(BitStream bitStream, int row, BlockScratch scratch, int[] lastDcValue) {
+		int blocksPerMcuRow = getMcusPerRow() * mcuComponents.length;
+		int offset = row * blocksPerMcuRow * 64;
+		for (int block = 0; block < blocksPerMcuRow; block++) {
+			int component = mcuComponents[block % mcuComponents.length];
+			long nonzero = 0;
+			for (int i = 0; i < 64; i++) {
+				int value = coefficients[offset + i];
+				scratch.quantized[i] = value;
+				nonzero |= (long) ((value | -value) >>> 31) << i;
+			}
+			scratch.nonzero = nonzero;
+			if (scratch.metrics == null) {
+				lastDcValue[component] = Huffman.encodeBlock(bitStream, scratch.quantized, nonzero,
+						lastDcValue[component], component == 0);
+			} else {
+				lastDcValue[component] = encodeBlockTimed(bitStream, scratch, lastDcValue[component],
+						component == 0);
+			}
+			offset += 64;
+		}
+	}
+
+	/**
+	 * Transforms and quantizes the whole image into the coefficient buffer,
+	 * in the order the blocks are entropy coded. MCU rows are independent here,
+	 * so they are processed in parallel.
+	 */
+	private void bufferCoefficients() {
+		allocateCoefficients();
+		forEachMcuRowChunk(this::quantizeMcuRows);
+	}
+
+	/**
+	 * Sets up the component of each block in an MCU and allocates the
+	 * coefficient buffer.
+	 */
+	private void allocateCoefficients() {
+		mcuComponents = new int[jpegInfo.HsampleFactor[0] * jpegInfo.VsampleFactor[0]
+				+ jpegInfo.HsampleFactor[1] * jpegInfo.VsampleFactor[1]
+				+ jpegInfo.HsampleFactor[2] * jpegInfo.VsampleFactor[2]];
+		for (int component = 0, block = 0; component < 3; component++) {
+			for (int i = 0; i < jpegInfo.HsampleFactor[component] * jpegInfo.VsampleFactor[component]; i++) {
+				mcuComponents[block++] = component;
+			}
+		}
+
+		int mcuRows = jpegInfo.paddedHeight / (8 * jpegInfo.MaxVsampleFactor);
+		coefficients = new short[mcuRows * getMcusPerRow() * mcuComponents.length * 64];
+	}
+
+	/**
+	 * A task over the MCU rows in the range [firstRow, endRow).
+	 */
+	private interface McuRowTask {
+		void run(int firstRow, int endRow);
+	}
+
+	/**
+	 * Splits the MCU rows into chunks and runs the task on them in parallel
+	 * on the fork-join pool.
+	 */
+	private void forEachMcuRowChunk(McuRowTask task) {
+		int mcuRows = jpegInfo.paddedHeight / (8 * jpegInfo.MaxVsampleFactor);
+		int chunkRows = Math.max(1, mcuRows / (4 * ForkJoinPool.getCommonPoolParallelism()));
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int row = 0; row < mcuRows; row += chunkRows) {
+			int firstRow = row;
+			int endRow = Math.min(row + chunkRows, mcuRows);
+			tasks.add(ForkJoinTask.adapt(() -> task.run(firstRow, endRow)));
+		}
+		ForkJoinTask.invokeAll(tasks);
+	}
+
+	/**
+	 * Transforms the MCU rows in the range [firstRow, endRow) with the float
+	 * DCT, keeping the unquantized coefficients in MCU order.
+	 */
+	private void transformMcuRows(int firstRow, int endRow, float[] transformed) {
+		Plane[] planes = { jpegInfo.y, jpegInfo.cb, jpegInfo.cr };
+		int blockWidth = 8 * jpegInfo.MaxHsampleFactor;
+		int blockHeight = 8 * jpegInfo.MaxVsampleFactor;
+		int offset = firstRow * getMcusPerRow() * mcuComponents.length * 64;
+		float[] block = new float[64];
+
+		for (int y = firstRow * blockHeight; y < endRow * blockHeight; y += blockHeight) {
+			for (int x = 0; x < jpegInfo.paddedWidth; x += blockWidth) {
+				for (int component = 0; component < 3; component++) {
+					Plane plane = planes[component];
+					int planeX = x * jpegInfo.HsampleFactor[component] / jpegInfo.MaxHsampleFactor;
+					int planeY = y * jpegInfo.VsampleFactor[component] / jpegInfo.MaxVsampleFactor;
+					for (int i = 0; i < jpegInfo.VsampleFactor[component]; i++) {
+						for (int j = 0; j < jpegInfo.HsampleFactor[component]; j++) {
+							config.dct.forwardDCT(plane.data, plane.offset(planeX + j * 8, planeY + i * 8),
+									plane.stride, block);
+							System.arraycopy(block, 0, transformed, offset, 64);
+							offset += 64;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transforms and quantizes the MCU rows in the range [firstRow, endRow)
+	 * into the coefficient buffer.
+	 */
+	private void quantizeMcuRows(int firstRow, int endRow) {
+		BlockScratch scratch = new BlockScratch();
+		scratch.metrics = metrics == null ? null : EncoderMetrics.forTask();
+		scratch.quality = qualityMetrics == null ? null : new QualityMetrics();
+		Plane[] planes = { jpegInfo.y, jpegInfo.cb, jpegInfo.cr };
+		int blockWidth = 8 * jpegInfo.MaxHsampleFactor;
+		int blockHeight = 8 * jpegInfo.MaxVsampleFactor;
+		int offset = firstRow * getMcusPerRow() * mcuComponents.length * 64;
+
+		for (int y = firstRow * blockHeight; y < endRow * blockHeight; y += blockHeight) {
+			for (int x = 0; x < jpegInfo.paddedWidth; x += blockWidth) {
+				for (int component = 0; component < 3; component++) {
+					Plane plane = planes[component];
+					int planeX = x * jpegInfo.HsampleFactor[component] / jpegInfo.MaxHsampleFactor;
+					int planeY = y * jpegInfo.VsampleFactor[component] / jpegInfo.MaxVsampleFactor;
+					for (int i = 0; i < jpegInfo.VsampleFactor[component]; i++) {
+						for (int j = 0; j < jpegInfo.HsampleFactor[component]; j++) {
+							int blockOffset = plane.offset(planeX + j * 8, planeY + i * 8);
+							if (scratch.metrics == null) {
+								dctEngine.transformBlock(plane.data, blockOffset, plane.stride, component == 0,
+										scratch);
+							} else {
+								dctEngine.transformBlockTimed(plane.data, blockOffset, plane.stride, component == 0,
+										scratch);
+							}
+							if (scratch.quality != null) {
+								measureBlock(scratch, component, plane, planeX + j * 8, planeY + i * 8);
+							}
+							for (int k = 0; k < 64; k++) {
+								coefficients[offset++] = (short) scratch.quantized[k];
+							}
+						}
+					}
+				}
+			}
+		}
+		if (scratch.metrics != null) {
+			metrics.merge(scratch.metrics);
+		}
+		if (scratch.quality != null) {
+			qualityMetrics.merge(scratch.quality);
+		}
+	}
+
+	/**
+	 * Gathers symbol frequencies from the coefficient buffer and builds
+	 * optimal Huffman tables from them.
+	 */
+	private Huffman buildOptimalHuffman() {
+		long[][] dcFrequencies = new long[2][257];
+		long[][] acFrequencies = new long[2][257];
+		countSymbols(dcFrequencies, acFrequencies);
+		return buildOptimalHuffman(dcFrequencies, acFrequencies);
+	}
+
+	/**
+	 * Counts the DC and AC symbols of the coefficient buffer, indexed by
+	 * [table][symbol], as a baseline scan would code them.
+	 */
+	private void countSymbols(long[][] dcFrequencies, long[][] acFrequencies) {
+		int mcuRows = jpegInfo.paddedHeight / (8 * jpegInfo.MaxVsampleFactor);
+		int restartRows = restartInterval > 0 ? getRestartRows() : mcuRows;
+		int blocksPerMcuRow = getMcusPerRow() * mcuComponents.length;
+		int[] lastDcValue = new int[3];
+		int offset = 0;
+		for (int row = 0; row < mcuRows; row++) {
+			if (row % restartRows == 0) {
+				Arrays.fill(lastDcValue, 0);
+			}
+			for (int block = 0; block < blocksPerMcuRow; block++) {
+				int component = mcuComponents[block % mcuComponents.length];
+				int table = component == 0 ? 0 : 1;
+				lastDcValue[component] = Huffman.countBlock(coefficients, offset, lastDcValue[component],
+						dcFrequencies[table], acFrequencies[table]);
+				offset += 64;
+			}
+		}
+	}
+
+	private Huffman buildOptimalHuffman(long[][] dcFrequencies, long[][] acFrequencies) {
+		int[][] dcLuminance = HuffmanTable.generateOptimalTable(dcFrequencies[0]);
+		int[][] acLuminance = HuffmanTable.generateOptimalTable(acFrequencies[0]);
+		if (jpegInfo.numComponents == 1) {
+			// The chroma tables are neither written nor used.
+			return new Huffman(dcLuminance[0], dcLuminance[1], acLuminance[0], acLuminance[1],
+					Huffman.getDcChrominanceBits(), Huffman.getDcChrominanceVal(),
+					Huffman.getAcChrominanceBits(), Huffman.getAcChrominanceVal());
+		}
+		int[][] dcChrominance = HuffmanTable.generateOptimalTable(dcFrequencies[1]);
+		int[][] acChrominance = HuffmanTable.generateOptimalTable(acFrequencies[1]);
+		return new Huffman(dcLuminance[0], dcLuminance[1], acLuminance[0], acLuminance[1],
+				dcChrominance[0], dcChrominance[1], acChrominance[0], acChrominance[1]);
+	}
+
+	/**
+	 * Encodes the MCU row whose top luma row is y in the current planes.
+	 */
+	private void encodeMcuRow(BitStream bitStream, int y, BlockScratch scratch, int[] lastDcValue) {
+		Plane[] planes = { jpegInfo.y, jpegInfo.cb, jpegInfo.cr };
+		for (int x = 0; x < jpegInfo.paddedWidth; x += 8 * jpegInfo.MaxHsampleFactor) {
+			encodeMcu(bitStream, planes, x, y, scratch, lastDcValue);
+		}
+	}
+
+	/**
+	 * Encodes the MCU row whose top luma row is y straight from the image.
+	 * Each MCU is converted, padded and downsampled into planes the size of
+	 * one MCU, which stay in the L1 cache while they are transformed and
+	 * coded, so the image is read once and no full-size planes are written.
+	 */
+	private void encodeFusedMcuRow(BitStream bitStream, int y, BlockScratch scratch, int[] lastDcValue) {
+		for (int x = 0; x < jpegInfo.paddedWidth; x += 8 * jpegInfo.MaxHsampleFactor) {
+			jpegInfo.convertMcu(x, y, scratch);
+			encodeMcu(bitStream, scratch.mcuPlanes, 0, 0, scratch, lastDcValue);
+		}
+	}
+
+	/**
+	 * Encodes the blocks of the MCU whose top-left luma sample is at (x, y)
+	 * in the planes, Y first, then Cb and Cr.
+	 */
+	private void encodeMcu(BitStream bitStream, Plane[] planes, int x, int y, BlockScratch scratch,
+			int[] lastDcValue) {
+		for (int component = 0; component < 3; component++) {
+			int planeX = x * jpegInfo.HsampleFactor[component] / jpegInfo.MaxHsampleFactor;
+			int planeY = y * jpegInfo.VsampleFactor[component] / jpegInfo.MaxVsampleFactor;
+			for (int i = 0; i < jpegInfo.VsampleFactor[component]; i++) {
+				for (int j = 0; j < jpegInfo.HsampleFactor[component]; j++) {
+					lastDcValue[component] = encodeBlock(bitStream, planes[component], planeX + j * 8,
+							planeY + i * 8, scratch, lastDcValue[component], component);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transforms, quantizes and entropy codes the 8x8 block at (x, y) of the
+	 * plane of a component.
+	 *
+	 * @return The new DC value to be used for the next block's differential coding.
+	 */
+	private int encodeBlock(BitStream bitStream, Plane plane, int x, int y, BlockScratch scratch, int lastDcValue,
+			int component) {
+		boolean isLuminance = component == 0;
+		if (scratch.metrics == null) {
+			dctEngine.transformBlock(plane.data, plane.offset(x, y), plane.stride, isLuminance, scratch);
+		} else {
+			dctEngine.transformBlockTimed(plane.data, plane.offset(x, y), plane.stride, isLuminance, scratch);
+		}
+		if (scratch.quality != null) {
+			measureBlock(scratch, component, plane, x, y);
+		}
+		if (scratch.metrics == null) {
+			return Huffman.encodeBlock(bitStream, scratch.quantized, scratch.nonzero, lastDcValue, isLuminance);
+		}
+		return encodeBlockTimed(bitStream, scratch, lastDcValue, isLuminance);
+	}
+
+	/**
+	 * Adds the error of the block in scratch.quantized, made from the 8x8
+	 * block at (x, y) of the plane of a component, to scratch.quality. Rows
+	 * and columns of padding are left out.
+	 */
+	private void measureBlock(BlockScratch scratch, int component, Plane plane, int x, int y) {
+		int h = jpegInfo.HsampleFactor[component];
+		int v = jpegInfo.VsampleFactor[component];
+		int componentWidth = (jpegInfo.imageWidth * h + jpegInfo.MaxHsampleFactor - 1) / jpegInfo.MaxHsampleFactor;
+		int componentHeight = (jpegInfo.imageHeight * v + jpegInfo.MaxVsampleFactor - 1) / jpegInfo.MaxVsampleFactor;
+		int width = Math.min(8, componentWidth - x);
+		int height = Math.min(8, componentHeight - (scratch.firstImageRow * v / jpegInfo.MaxVsampleFactor + y));
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+		int[] quantum = component == 0 ? quantizer.getQuantumLuminance() : quantizer.getQuantumChrominance();
+		scratch.quality.addBlock(component, plane.data, plane.offset(x, y), plane.stride, width, height,
+				scratch.quantized, scratch.nonzero, quantum);
+	}
+
+	/**
+	 * Entropy codes scratch.quantized into the metrics of the scratch, also
+	 * counting its zero coefficients.
+	 */
+	private int encodeBlockTimed(BitStream bitStream, BlockScratch scratch, int lastDcValue, boolean isLuminance) {
+		scratch.metrics.countBlock(scratch.nonzero);
+		long start = System.nanoTime();
+		int dcValue = Huffman.encodeBlock(bitStream, scratch.quantized, scratch.nonzero, lastDcValue, isLuminance);
+		scratch.metrics.add(EncoderMetrics.Stage.HUFFMAN, System.nanoTime() - start);
+		return dcValue;
+	}
+
+	/**
+	 * Number of MCUs in one row of the image.
+	 */
+	private int getMcusPerRow() {
+		return jpegInfo.paddedWidth / (8 * jpegInfo.MaxHsampleFactor);
+	}
+
+	/**
+	 * Restart interval in MCU rows, limited so the interval in MCUs fits in
+	 * the 16-bit DRI field.
+	 */
+	private int getRestartRows() {
+		return Math.max(1, Math.min(restartInterval, 0xFFFF / getMcusPerRow()));
+	}
+
+	/**
+	 * Per-thread scratch buffers for the block pipeline, reused for every block
+	 * so that encoding does not allocate per block.
+	 */
+	static class BlockScratch {
+		final float[] coeffs = new float[64];
+		final int[] workspace = new int[64];
+		// Quantized coefficients in zigzag order, and the mask of the nonzero ones
+		final int[] quantized = new int[64];
+		long nonzero;
+		// Trellis state per zigzag position: the best cost of a path ending in a
+		// nonzero coefficient there, its previous nonzero position and magnitude.
+		final float[] pathCost = new float[64];
+		final int[] pathPrevious = new int[64];
+		final int[] pathValue = new int[64];
+		// Squared coefficients in quantization steps, summed up to each position.
+		final float[] zeroCost = new float[64];
+		// Metrics of the thread using this scratch, or null.
+		EncoderMetrics metrics;
+		// Quality of the blocks quantized by this thread, or null.
+		QualityMetrics quality;
+		// Image row of the first luma row of the planes, when they hold a strip.
+		int firstImageRow;
+		// One MCU converted straight from the image, and the pixel and chroma
+		// rows used to convert it, allocated by JpegInfo.convertMcu().
+		Plane[] mcuPlanes;
+		int[] mcuPixels;
+		float[] mcuCb;
+		float[] mcuCr;
+	}
+
+	/**
+	 * Encodes one restart segment into a private buffer.
+	 */
+	private class SegmentTask extends RecursiveTask<ByteBuffer> {
+		private static final long serialVersionUID = 1L;
+
+		private final int firstRow;
+		private final int endRow;
+
+		SegmentTask(int firstRow, int endRow) {
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+		}
+
+		@Override
+		protected ByteBuffer compute() {
+			MemorySink buffer = ByteSink.toMemory(8192);
+			BitStream bitStream = new BitStream(buffer, metrics == null ? null : EncoderMetrics.forTask());
+			encodeMcuRows(bitStream, firstRow, endRow);
+			bitStream.flush();
+			if (bitStream.metrics != null) {
+				metrics.merge(bitStream.metrics);
+			}
+			return buffer.toByteBuffer();
+		}
+	}
+
+	/**
+	 * Supplies image pixels a strip of rows at a time for streaming compression.
+	 */
+	public interface RowSource {
+		int getWidth();
+
+		int getHeight();
+
+		/**
+		 * Reads numRows image rows starting at firstRow into pixels as packed
+		 * 0xRRGGBB values, getWidth() pixels per row.
+		 */
+		void readRows(int firstRow, int numRows, int[] pixels) throws IOException;
+
+		/**
+		 * Whether every pixel is gray, so that the image can be encoded with
+		 * luma only.
+		 */
+		default boolean isGrayscale() {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads rows from a Raster with 8-bit R, G, B bands, or a single gray band.
+	 */
+	public static class RasterRowSource implements RowSource {
+		private final Raster raster;
+		private int[] samples;
+
+		public RasterRowSource(Raster raster) {
+			this.raster = raster;
+		}
+
+		@Override
+		public int getWidth() {
+			return raster.getWidth();
+		}
+
+		@Override
+		public int getHeight() {
+			return raster.getHeight();
+		}
+
+		@Override
+		public boolean isGrayscale() {
+			return raster.getNumBands() < 3;
+		}
+
+		@Override
+		public void readRows(int firstRow, int numRows, int[] pixels) {
+			int width = raster.getWidth();
+			int count = width * numRows;
+			if (samples == null || samples.length < count) {
+				samples = new int[count];
+			}
+			int x = raster.getMinX();
+			int y = raster.getMinY() + firstRow;
+
+			if (raster.getNumBands() < 3) {
+				raster.getSamples(x, y, width, numRows, 0, samples);
+				for (int i = 0; i < count; i++) {
+					pixels[i] = samples[i] * 0x010101;
+				}
+				return;
+			}
+			for (int band = 0; band < 3; band++) {
+				raster.getSamples(x, y, width, numRows, band, samples);
+				for (int i = 0; i < count; i++) {
+					pixels[i] = (band == 0 ? 0 : pixels[i] << 8) | samples[i];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads rows from an ImageInputStream through an ImageIO reader, decoding
+	 * one strip at a time as a source region. This works best with formats the
+	 * reader can seek within, such as BMP or striped TIFF.
+	 */
+	public static class ImageReaderRowSource implements RowSource {
+		private final ImageReader reader;
+		private final ImageReadParam param;
+		private final int width;
+		private final int height;
+
+		public ImageReaderRowSource(ImageInputStream input) throws IOException {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) {
+				throw new IOException("No image reader found for input");
+			}
+			this.reader = readers.next();
+			this.reader.setInput(input);
+			this.param = reader.getDefaultReadParam();
+			this.width = reader.getWidth(0);
+			this.height = reader.getHeight(0);
+		}
+
+		@Override
+		public int getWidth() {
+			return width;
+		}
+
+		@Override
+		public int getHeight() {
+			return height;
+		}
+
+		@Override
+		public void readRows(int firstRow, int numRows, int[] pixels) throws IOException {
+			param.setSourceRegion(new Rectangle(0, firstRow, width, numRows));
+			BufferedImage strip = reader.read(0, param);
+			strip.getRGB(0, 0, width, numRows, pixels, 0, width);
+		}
+	}
+
+	/**
+	 * Converts rows of packed RGB pixels to Y, Cb and Cr samples.
+	 */
+	interface ColorConverter {
+		/**
+		 * Converts width pixels starting at pixelOffset. Y is written from
+		 * yOffset on, Cb and Cr from index 0.
+		 */
+		void convertRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset, float[] cbRow,
+				float[] crRow);
+
+		/**
+		 * Converts width pixels starting at pixelOffset to Y alone, written
+		 * from yOffset on.
+		 */
+		void convertLumaRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset);
+	}
+
+	static final ColorConverter DEFAULT_COLOR_CONVERTER = loadVectorImplementation("VectorColorConverter",
+			ColorConverter.class, ScalarColorConverter::new);
+
+	static final ColorConverter FIXED_COLOR_CONVERTER = new FixedPointColorConverter();
+
+	/**
+	 * Converts pixels one at a time with the JFIF equations.
+	 */
+	static class ScalarColorConverter implements ColorConverter {
+		@Override
+		public void convertRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset, float[] cbRow,
+				float[] crRow) {
+			for (int col = 0; col < width; col++) {
+				int pixel = pixels[pixelOffset + col];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+
+				// The following three lines are a more correct color conversion but
+				// the current conversion technique is sufficient and results in a higher
+				// compression rate.
+
+				// Y[y][x] = 16 + (float)(0.8588*(0.299 * (float)r + 0.587 * (float)g + 0.114 *
+				// (float)b ));
+
+				// Cb1[y][x] = 128 + (float)(0.8784*(-0.16874 * (float)r - 0.33126 * (float)g +
+				// 0.5 * (float)b));
+
+				// Cr1[y][x] = 128 + (float)(0.8784*(0.5 * (float)r - 0.41869 * (float)g -
+				// 0.08131 * (float)b));
+				yRow[yOffset + col] = (float) (0.299 * r + 0.587 * g + 0.114 * b);
+				cbRow[col] = (float) (128 - 0.168736 * r - 0.331264 * g + 0.5 * b);
+				crRow[col] = (float) (128 + 0.5 * r - 0.418688 * g - 0.081312 * b);
+			}
+		}
+
+		@Override
+		public void convertLumaRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset) {
+			for (int col = 0; col < width; col++) {
+				int pixel = pixels[pixelOffset + col];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				yRow[yOffset + col] = (float) (0.299 * r + 0.587 * g + 0.114 * b);
+			}
+		}
+	}
+
+	/**
+	 * Converts pixels in 16-bit fixed point with the rounding of libjpeg's
+	 * jccolor.c, giving integer samples. libjpeg reads each product from
+	 * eight tables of 256 entries, but the multiplies are done directly here,
+	 * with the same results: table lookups cannot be vectorized by the JIT,
+	 * and this loop can.
+	 */
+	static class FixedPointColorConverter implements ColorConverter {
+		private static final int SCALE_BITS = 16;
+		private static final int ONE_HALF = 1 << (SCALE_BITS - 1);
+		// 128 plus rounding, ONE_HALF - 1 keeping Cb and Cr at most 255
+		private static final int CBCR_OFFSET = (128 << SCALE_BITS) + ONE_HALF - 1;
+
+		private static final int Y_R = fix(0.299);
+		private static final int Y_G = fix(0.587);
+		private static final int Y_B = fix(0.114);
+		private static final int CB_R = fix(0.168736);
+		private static final int CB_G = fix(0.331264);
+		private static final int CR_G = fix(0.418688);
+		private static final int CR_B = fix(0.081312);
+		private static final int HALF = fix(0.5);
+
+		private static int fix(double x) {
+			return (int) (x * (1 << SCALE_BITS) + 0.5);
+		}
+
+		@Override
+		public void convertRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset, float[] cbRow,
+				float[] crRow) {
+			// Y is written at another offset than Cb and Cr, which keeps the JIT
+			// from vectorizing a single loop, so it has its own.
+			convertLumaRow(pixels, pixelOffset, width, yRow, yOffset);
+			for (int col = 0; col < width; col++) {
+				int pixel = pixels[pixelOffset + col];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				cbRow[col] = (HALF * b - CB_R * r - CB_G * g + CBCR_OFFSET) >> SCALE_BITS;
+				crRow[col] = (HALF * r - CR_G * g - CR_B * b + CBCR_OFFSET) >> SCALE_BITS;
+			}
+		}
+
+		@Override
+		public void convertLumaRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset) {
+			for (int col = 0; col < width; col++) {
+				int pixel = pixels[pixelOffset + col];
+				int r = (pixel >> 16) & 0xff;
+				int g = (pixel >> 8) & 0xff;
+				int b = pixel & 0xff;
+				yRow[yOffset + col] = (Y_R * r + Y_G * g + Y_B * b + ONE_HALF) >> SCALE_BITS;
+			}
+		}
+	}
+
+	/**
+	 * Reads the pixels of a BufferedImage straight from its data buffer, for
+	 * the layouts that allow it: 0xRRGGBB ints, as in TYPE_INT_RGB and
+	 * TYPE_INT_ARGB, and interleaved 8-bit samples, as in TYPE_3BYTE_BGR,
+	 * TYPE_4BYTE_ABGR and TYPE_BYTE_GRAY.
+	 */
+	static class PixelSource {
+		// Packed pixels, or null when the samples are bytes
+		final int[] ints;
+		final byte[] bytes;
+		// Index of pixel (0, 0), and the distance between rows and pixels
+		final int offset;
+		final int scanline;
+		final int pixelStride;
+		// Index of each sample within a pixel of bytes
+		final int rOffset;
+		final int gOffset;
+		final int bOffset;
+		// Whether the bytes are gray samples, used as they are for R, G and B
+		final boolean gray;
+
+		private PixelSource(int[] ints, byte[] bytes, int offset, int scanline, int pixelStride, int rOffset,
+				int gOffset, int bOffset, boolean gray) {
+			this.ints = ints;
+			this.bytes = bytes;
+			this.offset = offset;
+			this.scanline = scanline;
+			this.pixelStride = pixelStride;
+			this.rOffset = rOffset;
+			this.gOffset = gOffset;
+			this.bOffset = bOffset;
+			this.gray = gray;
+		}
+
+		/**
+		 * The pixel source of an image, or null if it has another layout.
+		 */
+		static PixelSource of(BufferedImage image) {
+			Raster raster = image.getRaster();
+			if (image.isAlphaPremultiplied()) {
+				return null;
+			}
+
+			if (raster.getDataBuffer() instanceof DataBufferInt
+					&& raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+				SinglePixelPackedSampleModel sampleModel = (SinglePixelPackedSampleModel) raster.getSampleModel();
+				int[] masks = sampleModel.getBitMasks();
+				if (masks.length < 3 || masks[0] != 0xFF0000 || masks[1] != 0xFF00 || masks[2] != 0xFF) {
+					return null;
+				}
+				DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+				int scanline = sampleModel.getScanlineStride();
+				int offset = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+						- raster.getSampleModelTranslateX();
+				return new PixelSource(buffer.getData(), null, offset, scanline, 1, 0, 0, 0, false);
+			}
+
+			if (!(raster.getDataBuffer() instanceof DataBufferByte)
+					|| !(raster.getSampleModel() instanceof ComponentSampleModel)
+					|| !(image.getColorModel() instanceof ComponentColorModel)) {
+				return null;
+			}
+			ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+			int bands = sampleModel.getNumBands();
+			int colorSpace = image.getColorModel().getColorSpace().getType();
+			boolean gray = bands <= 2 && colorSpace == ColorSpace.TYPE_GRAY;
+			boolean rgb = bands >= 3 && image.getColorModel().getColorSpace().isCS_sRGB();
+			if (!gray && !rgb) {
+				return null;
+			}
+			for (int size : sampleModel.getSampleSize()) {
+				if (size != 8) {
+					return null;
+				}
+			}
+
+			DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+			byte[] data = buffer.getData(sampleModel.getBankIndices()[0]);
+			for (int bank : sampleModel.getBankIndices()) {
+				if (bank != sampleModel.getBankIndices()[0]) {
+					return null;
+				}
+			}
+			int[] bandOffsets = sampleModel.getBandOffsets();
+			int rOffset = bandOffsets[0];
+			int gOffset = gray ? rOffset : bandOffsets[1];
+			int bOffset = gray ? rOffset : bandOffsets[2];
+			int pixelStride = sampleModel.getPixelStride();
+			int scanline = sampleModel.getScanlineStride();
+			int offset = buffer.getOffset() - raster.getSampleModelTranslateY() * scanline
+					- raster.getSampleModelTranslateX() * pixelStride;
+			return new PixelSource(null, data, offset, scanline, pixelStride, rOffset, gOffset, bOffset, gray);
+		}
+
+		/**
+		 * Reads count pixels of row y, from column x on, into pixels as packed
+		 * 0xRRGGBB values.
+		 */
+		void readPixels(int x, int y, int count, int[] pixels, int pixelOffset) {
+			if (ints != null) {
+				System.arraycopy(ints, offset + y * scanline + x, pixels, pixelOffset, count);
+				return;
+			}
+			int p = offset + y * scanline + x * pixelStride;
+			for (int i = 0; i < count; i++, p += pixelStride) {
+				pixels[pixelOffset + i] = ((bytes[p + rOffset] & 0xff) << 16) | ((bytes[p + gOffset] & 0xff) << 8)
+						| (bytes[p + bOffset] & 0xff);
+			}
+		}
+	}
+
+	/*
+	 * JpegInfo - Given an image, sets default information about it and divides
+	 * it into its constituant components, downsizing those that need to be.
+	 */
+	static class JpegInfo {
+		int imageWidth;
+		int imageHeight;
+		int paddedWidth;
+		int paddedHeight;
+
+		// Sampling factors for each component (Y, Cb, Cr)
+		int[] HsampleFactor = new int[3];
+		int[] VsampleFactor = new int[3];
+		int MaxHsampleFactor;
+		int MaxVsampleFactor;
+		// 1 for grayscale, where Cb and Cr have no blocks or planes, otherwise 3.
+		int numComponents = 3;
+
+		// Planes holding the Y, Cb, and Cr components of the image.
+		Plane y;
+		Plane cb;
+		Plane cr;
+
+		// Converts RGB pixel rows to YCbCr.
+		ColorConverter colorConverter = DEFAULT_COLOR_CONVERTER;
+		// Times the conversion stages when set.
+		EncoderMetrics metrics;
+
+		// The image while its conversion is deferred, and its pixels when they
+		// can be read in place, otherwise null.
+		private Image image;
+		PixelSource source;
+
+		// Scratch rows for full-resolution chroma.
+		private float[] rowCb;
+		private float[] rowCr;
+
+		public static int[] JPEG_NATURAL_ORDER = {
+				0, 1, 8, 16, 9, 2, 3, 10,
+				17, 24, 32, 25, 18, 11, 4, 5,
+				12, 19, 26, 33, 40, 48, 41, 34,
+				27, 20, 13, 6, 7, 14, 21, 28,
+				35, 42, 49, 56, 57, 50, 43, 36,
+				29, 22, 15, 23, 30, 37, 44, 51,
+				58, 59, 52, 45, 38, 31, 39, 46,
+				53, 60, 61, 54, 47, 55, 62, 63,
+		};
+
+		JpegInfo(Image image, Subsampling subsampling) {
+			this(image, subsampling, null);
+		}
+
+		/**
+		 * Converts the image, adding the time of each stage to metrics unless
+		 * it is null.
+		 */
+		JpegInfo(Image image, Subsampling subsampling, EncoderMetrics metrics) {
+			this(image, subsampling, metrics, false);
+		}
+
+		/**
+		 * Sets up the image like the constructor above. If deferred, the image
+		 * is not converted yet: it is converted as a whole by convertPlanes(),
+		 * or one MCU at a time by convertMcu() if convertsByMcu().
+		 */
+		JpegInfo(Image image, Subsampling subsampling, EncoderMetrics metrics, boolean deferred) {
+			this(image.getWidth(null), image.getHeight(null), isGrayscale(image) ? Subsampling.YUV_400 : subsampling);
+			this.metrics = metrics;
+			this.source = image instanceof BufferedImage ? PixelSource.of((BufferedImage) image) : null;
+			if (deferred) {
+				this.image = image;
+			} else {
+				convertToYCbCr(image);
+			}
+		}
+
+		/**
+		 * Whether the image has a gray color space, as TYPE_BYTE_GRAY and
+		 * TYPE_USHORT_GRAY do.
+		 */
+		static boolean isGrayscale(Image image) {
+			return image instanceof BufferedImage
+					&& ((BufferedImage) image).getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+		}
+
+		/**
+		 * Sets up the sampling factors and padded size without converting any
+		 * pixels. Planes are allocated later with allocatePlanes().
+		 */
+		JpegInfo(int imageWidth, int imageHeight, Subsampling subsampling) {
+			this.imageWidth = imageWidth;
+			this.imageHeight = imageHeight;
+
+			// Set sampling factors based on the chosen scheme
+			switch (subsampling) {
+				case YUV_420:
+					HsampleFactor[0] = 2;
+					HsampleFactor[1] = 1;
+					HsampleFactor[2] = 1;
+					VsampleFactor[0] = 2;
+					VsampleFactor[1] = 1;
+					VsampleFactor[2] = 1;
+					break;
+				case YUV_422:
+					HsampleFactor[0] = 2;
+					HsampleFactor[1] = 1;
+					HsampleFactor[2] = 1;
+					VsampleFactor[0] = 1;
+					VsampleFactor[1] = 1;
+					VsampleFactor[2] = 1;
+					break;
+				case YUV_400:
+					// Cb and Cr have no blocks, so every loop over their blocks is empty.
+					HsampleFactor[0] = 1;
+					VsampleFactor[0] = 1;
+					numComponents = 1;
+					break;
+				case YUV_444:
+				default:
+					HsampleFactor[0] = 1;
+					HsampleFactor[1] = 1;
+					HsampleFactor[2] = 1;
+					VsampleFactor[0] = 1;
+					VsampleFactor[1] = 1;
+					VsampleFactor[2] = 1;
+					break;
+			}
+
+			MaxHsampleFactor = HsampleFactor[0];
+			MaxVsampleFactor = VsampleFactor[0];
+
+			this.paddedWidth = (imageWidth + (8 * MaxHsampleFactor - 1)) & ~(8 * MaxHsampleFactor - 1);
+			this.paddedHeight = (imageHeight + (8 * MaxVsampleFactor - 1)) & ~(8 * MaxVsampleFactor - 1);
+		}
 
-		public static int[] JPEG_NATURAL_ORDER = {
-				0, 1, 8, 16, 9, 2, 3, 10,
-				17, 24, 32, 25, 18, 11, 4, 5,
-				12, 19, 26, 33, 40, 48, 41, 34,
-				27, 20, 13, 6, 7, 14, 21, 28,
-				35, 42, 49, 56, 57, 50, 43, 36,
-				29, 22, 15, 23, 30, 37, 44, 51,
-				58, 59, 52, 45, 38, 31, 39, 46,
-				53, 60, 61, 54, 47, 55, 62, 63,
+		/**
+		 * A region of a converted JpegInfo with the same sampling factors,
+		 * whose planes are views of the source planes. The region has to start
+		 * on an MCU boundary, so that its padding is the source padding and it
+		 * encodes as the same region cropped from the image would.
+		 */
+		JpegInfo(JpegInfo source, int left, int top, int width, int height, Subsampling subsampling) {
+			this(width, height, subsampling);
+			if (left % (8 * MaxHsampleFactor) != 0 || top % (8 * MaxVsampleFactor) != 0
+					|| left + width > source.imageWidth || top + height > source.imageHeight) {
+				throw new IllegalArgumentException("Region must be inside the image and start on an MCU boundary");
+			}
+			this.y = source.y.view(left, top, paddedWidth, paddedHeight);
+			if (numComponents == 3) {
+				int chromaX = left / MaxHsampleFactor;
+				int chromaY = top / MaxVsampleFactor;
+				this.cb = source.cb.view(chromaX, chromaY, paddedWidth / MaxHsampleFactor,
+						paddedHeight / MaxVsampleFactor);
+				this.cr = source.cr.view(chromaX, chromaY, paddedWidth / MaxHsampleFactor,
+						paddedHeight / MaxVsampleFactor);
+			}
+		}
+
+		/**
+		 * Converts RGB to YCbCr, pads the image, and performs chroma subsampling.
+		 */
+		private void convertToYCbCr(Image image) {
+			allocatePlanes(paddedHeight);
+
+			// Read common BufferedImage layouts straight from their data buffers.
+			if (source != null) {
+				convertFrom(source);
+				return;
+			}
+
+			// Grab pixels from the source image
+			long start = System.nanoTime();
+			int[] pixels = new int[imageWidth * imageHeight];
+			PixelGrabber grabber = new PixelGrabber(image, 0, 0, imageWidth, imageHeight, pixels, 0, imageWidth);
+			try {
+				if (!grabber.grabPixels()) {
+					System.out.println("Pixel grabbing failed, status: " + grabber.status());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				System.out.println("Pixel grabbing interrupted");
+			}
+			if (metrics != null) {
+				metrics.add(EncoderMetrics.Stage.PIXEL_FETCH, System.nanoTime() - start);
+			}
+
+			convertRows(pixels, 0, imageWidth, 0, paddedHeight, 0);
+		}
+
+		/**
+		 * Converts the whole image into planes, if its conversion was deferred.
+		 */
+		void convertPlanes() {
+			if (image != null && y == null) {
+				convertToYCbCr(image);
+			}
+		}
+
+		/**
+		 * Converts the whole image into planes like convertPlanes(), splitting
+		 * it into bands of MCU rows that are converted on the fork-join pool.
+		 * Bands do not share chroma rows, so each only needs its own scratch
+		 * rows. Images without a pixel source, and conversions timed into
+		 * metrics, are converted on the calling thread.
+		 */
+		void convertPlanesInParallel() {
+			if (image == null || y != null) {
+				return;
+			}
+			if (source == null || metrics != null) {
+				convertPlanes();
+				return;
+			}
+			allocatePlanes(paddedHeight);
+			int mcuHeight = 8 * MaxVsampleFactor;
+			int mcuRows = paddedHeight / mcuHeight;
+			int bandRows = mcuHeight * Math.max(1, mcuRows / (4 * ForkJoinPool.getCommonPoolParallelism()));
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int row = 0; row < paddedHeight; row += bandRows) {
+				int firstRow = row;
+				int endRow = Math.min(row + bandRows, paddedHeight);
+				tasks.add(ForkJoinTask.adapt(() -> convertBand(source, firstRow, endRow,
+						new float[paddedWidth], new float[paddedWidth])));
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+
+		/**
+		 * Whether the image has not been converted into planes yet, and can be
+		 * converted one MCU at a time from its pixel source.
+		 */
+		boolean convertsByMcu() {
+			return image != null && y == null && source != null && !source.gray;
+		}
+
+		/**
+		 * Converts the image from the data buffer of a BufferedImage.
+		 */
+		private void convertFrom(PixelSource source) {
+			convertBand(source, 0, paddedHeight, rowCb, rowCr);
+		}
+
+		/**
+		 * Converts the padded rows [firstRow, endRow) from a pixel source, using
+		 * cbRow and crRow for full-resolution chroma. Bands other than the whole
+		 * image have to start and end on MCU rows.
+		 */
+		private void convertBand(PixelSource source, int firstRow, int endRow, float[] cbRow, float[] crRow) {
+			int imageRows = Math.max(0, Math.min(endRow, imageHeight) - firstRow);
+			if (source.ints != null) {
+				convertRows(source.ints, source.offset + firstRow * source.scanline, source.scanline, firstRow,
+						endRow - firstRow, firstRow, cbRow, crRow);
+				return;
+			}
+
+			// Gray samples are the luma itself.
+			if (source.gray && numComponents == 1) {
+				long start = System.nanoTime();
+				for (int row = firstRow; row < firstRow + imageRows; row++) {
+					int p = source.offset + row * source.scanline + source.rOffset;
+					int yOffset = y.offset(0, row);
+					for (int col = 0; col < imageWidth; col++, p += source.pixelStride) {
+						y.data[yOffset + col] = source.bytes[p] & 0xff;
+					}
+					Arrays.fill(y.data, yOffset + imageWidth, yOffset + paddedWidth, y.data[yOffset + imageWidth - 1]);
+				}
+				for (int row = firstRow + imageRows; row < endRow; row++) {
+					System.arraycopy(y.data, y.offset(0, row - 1), y.data, y.offset(0, row), paddedWidth);
+				}
+				if (metrics != null) {
+					metrics.add(EncoderMetrics.Stage.COLOR_CONVERT, System.nanoTime() - start);
+				}
+				return;
+			}
+
+			// Only one packed row is held at a time.
+			int[] rowPixels = new int[imageWidth];
+			for (int row = firstRow; row < firstRow + imageRows; row++) {
+				long start = metrics == null ? 0 : System.nanoTime();
+				source.readPixels(0, row, imageWidth, rowPixels, 0);
+				if (metrics != null) {
+					metrics.add(EncoderMetrics.Stage.PIXEL_FETCH, System.nanoTime() - start);
+				}
+				convertRows(rowPixels, 0, imageWidth, row, 1, row, cbRow, crRow);
+			}
+			int paddingRow = firstRow + imageRows;
+			convertRows(rowPixels, 0, imageWidth, paddingRow, endRow - paddingRow, paddingRow, cbRow, crRow);
+		}
+
+		/**
+		 * Converts the MCU whose top-left luma sample is at (x, y) straight from
+		 * the pixel source into scratch.mcuPlanes, planes the size of one MCU.
+		 * Columns and rows past the image repeat the last ones, and chroma is
+		 * downsampled, exactly as convertRows() does for whole planes.
+		 */
+		void convertMcu(int x, int y, BlockScratch scratch) {
+			int mcuWidth = 8 * MaxHsampleFactor;
+			int mcuHeight = 8 * MaxVsampleFactor;
+			if (scratch.mcuPlanes == null) {
+				scratch.mcuPlanes = new Plane[] { new Plane(mcuWidth, mcuHeight),
+						numComponents == 1 ? null : new Plane(8, 8), numComponents == 1 ? null : new Plane(8, 8) };
+				scratch.mcuPixels = new int[mcuWidth];
+				scratch.mcuCb = new float[mcuWidth];
+				scratch.mcuCr = new float[mcuWidth];
+			}
+			long start = scratch.metrics == null ? 0 : System.nanoTime();
+			Plane yPlane = scratch.mcuPlanes[0];
+			Plane cbPlane = scratch.mcuPlanes[1];
+			Plane crPlane = scratch.mcuPlanes[2];
+			if (numComponents == 3) {
+				Arrays.fill(cbPlane.data, 0f);
+				Arrays.fill(crPlane.data, 0f);
+			}
+
+			int width = Math.min(mcuWidth, imageWidth - x);
+			int height = Math.min(mcuHeight, imageHeight - y);
+			for (int row = 0; row < mcuHeight; row++) {
+				int yOffset = yPlane.offset(0, row);
+				if (row < height) {
+					// Packed pixels are converted where they are, others packed first.
+					int[] pixels = source.ints;
+					int pixelOffset = source.offset + (y + row) * source.scanline + x;
+					if (pixels == null) {
+						source.readPixels(x, y + row, width, scratch.mcuPixels, 0);
+						pixels = scratch.mcuPixels;
+						pixelOffset = 0;
+					}
+					convertRow(pixels, pixelOffset, width, mcuWidth, yPlane.data, yOffset, scratch.mcuCb,
+							scratch.mcuCr);
+				} else {
+					System.arraycopy(yPlane.data, yOffset - mcuWidth, yPlane.data, yOffset, mcuWidth);
+				}
+				if (numComponents == 3) {
+					downsampleRow(scratch.mcuCb, cbPlane, row);
+					downsampleRow(scratch.mcuCr, crPlane, row);
+				}
+			}
+			if (scratch.metrics != null) {
+				scratch.metrics.add(EncoderMetrics.Stage.COLOR_CONVERT, System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Fills the planes by reducing the planes of a larger JpegInfo with the
+		 * same sampling factors, then pads them by repeating the last row and
+		 * column, as convertRows() does.
+		 */
+		void reduceFrom(JpegInfo source) {
+			allocatePlanes(paddedHeight);
+			reducePlane(source.y, source.imageWidth, source.imageHeight, y, imageWidth, imageHeight);
+			if (numComponents == 3) {
+				int sourceWidth = (source.imageWidth + MaxHsampleFactor - 1) / MaxHsampleFactor;
+				int sourceHeight = (source.imageHeight + MaxVsampleFactor - 1) / MaxVsampleFactor;
+				int width = (imageWidth + MaxHsampleFactor - 1) / MaxHsampleFactor;
+				int height = (imageHeight + MaxVsampleFactor - 1) / MaxVsampleFactor;
+				reducePlane(source.cb, sourceWidth, sourceHeight, cb, width, height);
+				reducePlane(source.cr, sourceWidth, sourceHeight, cr, width, height);
+			}
+		}
+
+		/**
+		 * Fills the planes from the planes of a JpegInfo 8/blockSize times larger
+		 * with the same sampling factors, scaling in the DCT domain as libjpeg's
+		 * reduced-size IDCTs do: each 8x8 source block is transformed, and the
+		 * blockSize x blockSize low-frequency coefficients are inverse transformed
+		 * into blockSize x blockSize samples.
+		 */
+		void scaleFrom(JpegInfo source, int blockSize, DCT dct) {
+			allocatePlanes(paddedHeight);
+
+			// Inverse DCT basis of the reduced size, C(u)/2 * cos((2m+1)u*pi/(2*blockSize)),
+			// so that the DC coefficient of a block becomes its mean.
+			float[] basis = new float[blockSize * blockSize];
+			for (int m = 0; m < blockSize; m++) {
+				for (int u = 0; u < blockSize; u++) {
+					double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+					basis[m * blockSize + u] = (float) (c / 2 * Math.cos((2 * m + 1) * u * Math.PI / (2 * blockSize)));
+				}
+			}
+
+			scalePlane(source.y, y, imageWidth, imageHeight, blockSize, basis, dct);
+			if (numComponents == 3) {
+				int width = (imageWidth + MaxHsampleFactor - 1) / MaxHsampleFactor;
+				int height = (imageHeight + MaxVsampleFactor - 1) / MaxVsampleFactor;
+				scalePlane(source.cb, cb, width, height, blockSize, basis, dct);
+				scalePlane(source.cr, cr, width, height, blockSize, basis, dct);
+			}
+		}
+
+		/**
+		 * Scales src into the top-left width x height samples of dst, then pads
+		 * dst by repeating the last row and column.
+		 */
+		private static void scalePlane(Plane src, Plane dst, int width, int height, int blockSize, float[] basis,
+				DCT dct) {
+			float[] coeffs = new float[64];
+			float[] rows = new float[blockSize * blockSize];
+			int blocksWide = (width + blockSize - 1) / blockSize;
+			int blocksHigh = (height + blockSize - 1) / blockSize;
+
+			for (int by = 0; by < blocksHigh; by++) {
+				for (int bx = 0; bx < blocksWide; bx++) {
+					dct.forwardDCT(src.data, src.offset(bx * 8, by * 8), src.stride, coeffs);
+
+					// Horizontal pass: rows[v][n] = sum over u of basis[n][u] * F(v, u)
+					for (int v = 0; v < blockSize; v++) {
+						for (int n = 0; n < blockSize; n++) {
+							float sum = 0;
+							for (int u = 0; u < blockSize; u++) {
+								sum += basis[n * blockSize + u] * coeffs[v * 8 + u] * DESCALE[v * 8 + u];
+							}
+							rows[v * blockSize + n] = sum;
+						}
+					}
+
+					// Vertical pass, adding back the 128 the forward DCT subtracted
+					for (int m = 0; m < blockSize && by * blockSize + m < dst.height; m++) {
+						int offset = dst.offset(bx * blockSize, by * blockSize + m);
+						for (int n = 0; n < blockSize && bx * blockSize + n < dst.width; n++) {
+							float sum = 128f;
+							for (int v = 0; v < blockSize; v++) {
+								sum += basis[m * blockSize + v] * rows[v * blockSize + n];
+							}
+							dst.data[offset + n] = sum;
+						}
+					}
+				}
+			}
+
+			for (int row = 0; row < height; row++) {
+				int offset = dst.offset(0, row);
+				Arrays.fill(dst.data, offset + width, offset + dst.width, dst.data[offset + width - 1]);
+			}
+			for (int row = height; row < dst.height; row++) {
+				System.arraycopy(dst.data, dst.offset(0, row - 1), dst.data, dst.offset(0, row), dst.width);
+			}
+		}
+
+		// Removes the AAN scaling from the forward DCT output.
+		private static final float[] DESCALE = new float[64];
+		static {
+			for (int v = 0; v < 8; v++) {
+				for (int u = 0; u < 8; u++) {
+					DESCALE[v * 8 + u] = (float) (1.0
+							/ (Quantizer.AAN_SCALE_FACTORS[v] * Quantizer.AAN_SCALE_FACTORS[u] * 8.0));
+				}
+			}
+		}
+
+		/**
+		 * Box-filters the top-left srcWidth x srcHeight samples of src down to
+		 * width x height samples of dst. Each destination sample is the average
+		 * of the source samples whose position maps into it.
+		 */
+		private static void reducePlane(Plane src, int srcWidth, int srcHeight, Plane dst, int width, int height) {
+			int[] firstColumn = new int[width + 1];
+			for (int x = 0; x <= width; x++) {
+				firstColumn[x] = (int) ((long) x * srcWidth / width);
+			}
+			float[] sums = new float[width];
+
+			for (int row = 0; row < height; row++) {
+				int firstRow = (int) ((long) row * srcHeight / height);
+				int endRow = (int) ((long) (row + 1) * srcHeight / height);
+				Arrays.fill(sums, 0f);
+				for (int sy = firstRow; sy < endRow; sy++) {
+					int offset = src.offset(0, sy);
+					for (int x = 0; x < width; x++) {
+						float sum = 0;
+						for (int sx = firstColumn[x]; sx < firstColumn[x + 1]; sx++) {
+							sum += src.data[offset + sx];
+						}
+						sums[x] += sum;
+					}
+				}
+
+				int offset = dst.offset(0, row);
+				for (int x = 0; x < width; x++) {
+					sums[x] /= (endRow - firstRow) * (firstColumn[x + 1] - firstColumn[x]);
+				}
+				System.arraycopy(sums, 0, dst.data, offset, width);
+				Arrays.fill(dst.data, offset + width, offset + dst.width, sums[width - 1]);
+			}
+			for (int row = height; row < dst.height; row++) {
+				System.arraycopy(dst.data, dst.offset(0, row - 1), dst.data, dst.offset(0, row), dst.width);
+			}
+		}
+
+		/**
+		 * Allocates planes that hold the given number of padded luma rows, either
+		 * the whole image or a single strip of MCU rows.
+		 */
+		void allocatePlanes(int rows) {
+			y = new Plane(paddedWidth, rows);
+			if (numComponents == 1) {
+				return;
+			}
+			cb = new Plane(paddedWidth / MaxHsampleFactor, rows / MaxVsampleFactor);
+			cr = new Plane(paddedWidth / MaxHsampleFactor, rows / MaxVsampleFactor);
+
+			// Full-resolution chroma is only kept for the current row.
+			rowCb = new float[paddedWidth];
+			rowCr = new float[paddedWidth];
+		}
+
+		/**
+		 * Clears the chroma planes. Chroma is accumulated, so planes reused for
+		 * another strip have to start from zero.
+		 */
+		void clearChroma() {
+			if (numComponents == 1) {
+				return;
+			}
+			Arrays.fill(cb.data, 0f);
+			Arrays.fill(cr.data, 0f);
+		}
+
+		/**
+		 * Converts the padded image rows [firstRow, firstRow + numRows) into the
+		 * planes, starting at plane row planeRow. The pixels array holds image row
+		 * firstRow at pixelOffset, and the following rows scanline pixels apart.
+		 */
+		void convertRows(int[] pixels, int pixelOffset, int scanline, int firstRow, int numRows, int planeRow) {
+			convertRows(pixels, pixelOffset, scanline, firstRow, numRows, planeRow, rowCb, rowCr);
+		}
+
+		private void convertRows(int[] pixels, int pixelOffset, int scanline, int firstRow, int numRows, int planeRow,
+				float[] cbRow, float[] crRow) {
+			for (int i = 0; i < numRows; i++) {
+				long start = metrics == null ? 0 : System.nanoTime();
+				int row = planeRow + i;
+				if (firstRow + i < imageHeight) {
+					convertRow(pixels, pixelOffset + i * scanline, imageWidth, paddedWidth, y.data, y.offset(0, row),
+							cbRow, crRow);
+				} else {
+					// Padding rows repeat the last image row.
+					System.arraycopy(y.data, y.offset(0, row - 1), y.data, y.offset(0, row), paddedWidth);
+				}
+				long converted = metrics == null ? 0 : System.nanoTime();
+				if (numComponents == 3) {
+					downsampleRow(cbRow, cb, row);
+					downsampleRow(crRow, cr, row);
+				}
+				if (metrics != null) {
+					metrics.add(EncoderMetrics.Stage.COLOR_CONVERT, converted - start);
+					metrics.add(EncoderMetrics.Stage.DOWNSAMPLE, System.nanoTime() - converted);
+				}
+			}
+		}
+
+		/**
+		 * Converts width pixels of one row to YCbCr, padding the row to padTo
+		 * samples by repeating the last pixel.
+		 */
+		private void convertRow(int[] pixels, int pixelOffset, int width, int padTo, float[] yRow, int yOffset,
+				float[] cbRow, float[] crRow) {
+			if (numComponents == 1) {
+				convertLumaRow(pixels, pixelOffset, width, padTo, yRow, yOffset);
+				return;
+			}
+			colorConverter.convertRow(pixels, pixelOffset, width, yRow, yOffset, cbRow, crRow);
+
+			// Handle image padding
+			for (int col = width; col < padTo; col++) {
+				yRow[yOffset + col] = yRow[yOffset + width - 1];
+				cbRow[col] = cbRow[width - 1];
+				crRow[col] = crRow[width - 1];
+			}
+		}
+
+		/**
+		 * Converts one row of RGB pixels to Y alone, padding it like convertRow().
+		 */
+		private void convertLumaRow(int[] pixels, int pixelOffset, int width, int padTo, float[] yRow, int yOffset) {
+			colorConverter.convertLumaRow(pixels, pixelOffset, width, yRow, yOffset);
+			Arrays.fill(yRow, yOffset + width, yOffset + padTo, yRow[yOffset + width - 1]);
+		}
+
+		/**
+		 * Adds one full-resolution chroma row into its subsampled plane, averaging
+		 * each MaxHsampleFactor x MaxVsampleFactor area.
+		 */
+		void downsampleRow(float[] row, Plane plane, int imageRow) {
+			int offset = plane.offset(0, imageRow / MaxVsampleFactor);
+			if (MaxHsampleFactor == 1 && MaxVsampleFactor == 1) {
+				System.arraycopy(row, 0, plane.data, offset, plane.width);
+				return;
+			}
+			// Every scheme that subsamples halves the width.
+			float weight = 1f / (MaxHsampleFactor * MaxVsampleFactor);
+			for (int x = 0; x < plane.width; x++) {
+				plane.data[offset + x] += (row[2 * x] + row[2 * x + 1]) * weight;
+			}
+		}
+	}
+
+	/**
+	 * A single image component stored in one contiguous array, row by row. A
+	 * plane can also be a view of a region of a larger plane, sharing its
+	 * array.
+	 */
+	static class Plane {
+		final float[] data;
+		final int width;
+		final int height;
+		final int stride;
+		// Index of the sample at column 0, row 0
+		final int start;
+
+		Plane(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.stride = width;
+			this.start = 0;
+			this.data = new float[width * height];
+		}
+
+		private Plane(Plane parent, int x, int y, int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.stride = parent.stride;
+			this.start = parent.offset(x, y);
+			this.data = parent.data;
+		}
+
+		/**
+		 * A view of the width x height samples from column x, row y on,
+		 * without copying them.
+		 */
+		Plane view(int x, int y, int width, int height) {
+			if (x < 0 || y < 0 || x + width > this.width || y + height > this.height) {
+				throw new IllegalArgumentException("View is outside the plane");
+			}
+			return new Plane(this, x, y, width, height);
+		}
+
+		/**
+		 * Index of the sample at column x, row y.
+		 */
+		int offset(int x, int y) {
+			return start + y * stride + x;
+		}
+	}
+
+	/*
+	 * DCT - A Java implementation of the Discreet Cosine Transform
+	 */
+	static class DCT {
+		DCT() {
+		}
+
+		/**
+		 * Performs a forward DCT using the AAN algorithm.
+		 * Reads an 8x8 block starting at offset from a plane with the given
+		 * stride, and writes the 64 coefficients in row-major order to dst. The
+		 * coefficients are scaled by the AAN factors, which the Quantizer
+		 * divides out.
+		 */
+		public void forwardDCT(float[] src, int offset, int stride, float[] dst) {
+			float tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7;
+			float tmp10, tmp11, tmp12, tmp13;
+			float z1, z2, z3, z4, z5, z11, z13;
+			int i;
+
+			// Rows, subtracting 128 from the input values
+			for (i = 0; i < 8; i++) {
+				int in = offset + i * stride;
+				int out = i * 8;
+				float s0 = src[in] - 128f, s1 = src[in + 1] - 128f;
+				float s2 = src[in + 2] - 128f, s3 = src[in + 3] - 128f;
+				float s4 = src[in + 4] - 128f, s5 = src[in + 5] - 128f;
+				float s6 = src[in + 6] - 128f, s7 = src[in + 7] - 128f;
+
+				tmp0 = s0 + s7;
+				tmp7 = s0 - s7;
+				tmp1 = s1 + s6;
+				tmp6 = s1 - s6;
+				tmp2 = s2 + s5;
+				tmp5 = s2 - s5;
+				tmp3 = s3 + s4;
+				tmp4 = s3 - s4;
+
+				tmp10 = tmp0 + tmp3;
+				tmp13 = tmp0 - tmp3;
+				tmp11 = tmp1 + tmp2;
+				tmp12 = tmp1 - tmp2;
+
+				dst[out] = tmp10 + tmp11;
+				dst[out + 4] = tmp10 - tmp11;
+
+				z1 = (tmp12 + tmp13) * 0.707106781f;
+				dst[out + 2] = tmp13 + z1;
+				dst[out + 6] = tmp13 - z1;
+
+				tmp10 = tmp4 + tmp5;
+				tmp11 = tmp5 + tmp6;
+				tmp12 = tmp6 + tmp7;
+
+				z5 = (tmp10 - tmp12) * 0.382683433f;
+				z2 = 0.541196100f * tmp10 + z5;
+				z4 = 1.306562965f * tmp12 + z5;
+				z3 = tmp11 * 0.707106781f;
+
+				z11 = tmp7 + z3;
+				z13 = tmp7 - z3;
+
+				dst[out + 5] = z13 + z2;
+				dst[out + 3] = z13 - z2;
+				dst[out + 1] = z11 + z4;
+				dst[out + 7] = z11 - z4;
+			}
+
+			// Columns
+			for (i = 0; i < 8; i++) {
+				tmp0 = dst[i] + dst[56 + i];
+				tmp7 = dst[i] - dst[56 + i];
+				tmp1 = dst[8 + i] + dst[48 + i];
+				tmp6 = dst[8 + i] - dst[48 + i];
+				tmp2 = dst[16 + i] + dst[40 + i];
+				tmp5 = dst[16 + i] - dst[40 + i];
+				tmp3 = dst[24 + i] + dst[32 + i];
+				tmp4 = dst[24 + i] - dst[32 + i];
+
+				tmp10 = tmp0 + tmp3;
+				tmp13 = tmp0 - tmp3;
+				tmp11 = tmp1 + tmp2;
+				tmp12 = tmp1 - tmp2;
+
+				dst[i] = tmp10 + tmp11;
+				dst[32 + i] = tmp10 - tmp11;
+
+				z1 = (tmp12 + tmp13) * 0.707106781f;
+				dst[16 + i] = tmp13 + z1;
+				dst[48 + i] = tmp13 - z1;
+
+				tmp10 = tmp4 + tmp5;
+				tmp11 = tmp5 + tmp6;
+				tmp12 = tmp6 + tmp7;
+
+				z5 = (tmp10 - tmp12) * 0.382683433f;
+				z2 = 0.541196100f * tmp10 + z5;
+				z4 = 1.306562965f * tmp12 + z5;
+				z3 = tmp11 * 0.707106781f;
+
+				z11 = tmp7 + z3;
+				z13 = tmp7 - z3;
+
+				dst[40 + i] = z13 + z2;
+				dst[24 + i] = z13 - z2;
+				dst[8 + i] = z11 + z4;
+				dst[56 + i] = z11 - z4;
+			}
+		}
+	}
+
+	/**
+	 * Handles quantization of DCT coefficients
+	 */
+	static class Quantizer {
+		private int[] quantum_luminance = new int[64];
+		private int[] quantum_chrominance = new int[64];
+		// Reciprocals of the quantization steps for AAN-scaled DCT output.
+		private final float[] divisors_luminance;
+		private final float[] divisors_chrominance;
+
+		static final double[] AAN_SCALE_FACTORS = {
+				1.0, 1.387039845, 1.306562965, 1.175875602,
+				1.0, 0.785694958, 0.541196100, 0.275899379
+		};
+
+		// mozjpeg's default lambda_log_scale1 and lambda_log_scale2
+		private static final double LAMBDA_SCALE1 = Math.pow(2, 14.75);
+		private static final double LAMBDA_SCALE2 = Math.pow(2, 16.5);
+
+		// Turns AAN-scaled coefficients into 8 times the plain DCT coefficients,
+		// the scale of libjpeg's integer DCT output that the lambda is tuned for.
+		private static final float[] AAN_INVERSE = new float[64];
+		static {
+			for (int i = 0; i < 64; i++) {
+				AAN_INVERSE[i] = (float) (1.0 / (AAN_SCALE_FACTORS[i >> 3] * AAN_SCALE_FACTORS[i & 7]));
+			}
+		}
+
+		private static int[] QUANTUM_LUMINANCE = {
+				16, 11, 10, 16, 24, 40, 51, 61,
+				12, 12, 14, 19, 26, 58, 60, 55,
+				14, 13, 16, 24, 40, 57, 69, 56,
+				14, 17, 22, 29, 51, 87, 80, 62,
+				18, 22, 37, 56, 68, 109, 103, 77,
+				24, 35, 55, 64, 81, 104, 113, 92,
+				49, 64, 78, 87, 103, 121, 120, 101,
+				72, 92, 95, 98, 112, 100, 103, 99
 		};
 
-		JpegInfo(Image image, Subsampling subsampling) {
-			this.imageWidth = image.getWidth(null);
-			this.imageHeight = image.getHeight(null);
+		private static int[] QUANTUM_CHROMINANCE = {
+				17, 18, 24, 47, 99, 99, 99, 99,
+				18, 21, 26, 66, 99, 99, 99, 99,
+				24, 26, 56, 99, 99, 99, 99, 99,
+				47, 66, 99, 99, 99, 99, 99, 99,
+				99, 99, 99, 99, 99, 99, 99, 99,
+				99, 99, 99, 99, 99, 99, 99, 99,
+				99, 99, 99, 99, 99, 99, 99, 99,
+				99, 99, 99, 99, 99, 99, 99, 99
+		};
 
-			// Set sampling factors based on the chosen scheme
-			switch (subsampling) {
-				case YUV_420:
-					HsampleFactor[0] = 2;
-					HsampleFactor[1] = 1;
-					HsampleFactor[2] = 1;
-					VsampleFactor[0] = 2;
-					VsampleFactor[1] = 1;
-					VsampleFactor[2] = 1;
-					break;
-				case YUV_422:
-					HsampleFactor[0] = 2;
-					HsampleFactor[1] = 1;
-					HsampleFactor[2] = 1;
-					VsampleFactor[0] = 1;
-					VsampleFactor[1] = 1;
-					VsampleFactor[2] = 1;
-					break;
-				case YUV_444:
-				default:
-					HsampleFactor[0] = 1;
-					HsampleFactor[1] = 1;
-					HsampleFactor[2] = 1;
-					VsampleFactor[0] = 1;
-					VsampleFactor[1] = 1;
-					VsampleFactor[2] = 1;
-					break;
+		/**
+		 * Initializes the quantizer, scaling the base tables according to the quality
+		 * setting
+		 */
+		Quantizer(int quality) {
+			int scale = quality;
+
+			if (scale <= 0)
+				scale = 1;
+			if (scale > 100)
+				scale = 100;
+			if (scale < 50)
+				scale = 5000 / scale;
+			else
+				scale = 200 - scale * 2;
+
+			for (int i = 0; i < 64; i++) {
+				quantum_luminance[i] = Math.max(1, (QUANTUM_LUMINANCE[i] * scale + 50) / 100);
+				quantum_chrominance[i] = Math.max(1, (QUANTUM_CHROMINANCE[i] * scale + 50) / 100);
 			}
 
-			MaxHsampleFactor = HsampleFactor[0];
-			MaxVsampleFactor = VsampleFactor[0];
+			divisors_luminance = aanDivisors(quantum_luminance);
+			divisors_chrominance = aanDivisors(quantum_chrominance);
+		}
 
-			this.paddedWidth = (imageWidth + (8 * MaxHsampleFactor - 1)) & ~(8 * MaxHsampleFactor - 1);
-			this.paddedHeight = (imageHeight + (8 * MaxVsampleFactor - 1)) & ~(8 * MaxVsampleFactor - 1);
+		/**
+		 * The reciprocals of the quantization steps for the output of the AAN
+		 * DCT. The AAN DCT leaves each coefficient scaled by 8 and by the AAN
+		 * factors of its row and column, so all of these are folded into the
+		 * divisor. Dividing by 8 alone, as the original quantizeBlock() did,
+		 * leaves the coefficients scaled by factors from 0.08 to 1.9, and costs
+		 * about 8 dB of PSNR at quality 75.
+		 */
+		static float[] aanDivisors(int[] quantum) {
+			float[] divisors = new float[64];
+			for (int i = 0; i < 64; i++) {
+				divisors[i] = (float) (1.0 / aanDivisor(quantum[i], i));
+			}
+			return divisors;
+		}
 
-			convertToYCbCr(image);
+		/**
+		 * The quantization step for coefficient index (row-major) of the AAN
+		 * DCT output: the step times 8 and the AAN factors of its row and
+		 * column.
+		 */
+		static double aanDivisor(int quantum, int index) {
+			return quantum * (AAN_SCALE_FACTORS[index >> 3] * AAN_SCALE_FACTORS[index & 7] * 8.0);
 		}
 
 		/**
-		 * Converts RGB to YCbCr, pads the image, and performs chroma subsampling.
+		 * Quantizes a single 8x8 block of AAN-scaled DCT coefficients, given in
+		 * row-major order, into out in zigzag order. The rounding is done in
+		 * row-major order into workspace, where it vectorizes, and only the
+		 * integer results are reordered.
+		 *
+		 * @return A mask with bit k set when coefficient k in zigzag order is
+		 *         not zero.
 		 */
-		private void convertToYCbCr(Image image) {
-			// Grab pixels from the source image
-			int[] pixels = new int[imageWidth * imageHeight];
-			PixelGrabber grabber = new PixelGrabber(image, 0, 0, imageWidth, imageHeight, pixels, 0, imageWidth);
-			try {
-				if (grabber.grabPixels() != true) {
-					try {
-						throw new AWTException("Grabber returned false: " + grabber.status());
-					} catch (Exception e) {
+		public long quantizeInto(float[] coeffs, int[] workspace, int[] out, boolean isLuminance) {
+			float[] divisors = isLuminance ? divisors_luminance : divisors_chrominance;
+			for (int i = 0; i < 64; i++) {
+				workspace[i] = Math.round(coeffs[i] * divisors[i]);
+			}
+			return toZigzag(workspace, out);
+		}
+
+		/**
+		 * Quantizes the row-major AAN-scaled coefficients in scratch.coeffs into
+		 * scratch.quantized, choosing the AC values that minimize
+		 * distortion + lambda * bits rather than rounding each one, as mozjpeg's
+		 * trellis quantization does. Distortion is the squared error in
+		 * quantization steps. A coefficient is either zero, its rounded
+		 * magnitude or one less, and the bits come from the code lengths of
+		 * acTable. Lambda grows with the AC energy of the block, so textured
+		 * blocks, where errors are less visible, give up more.
+		 *
+		 * @return The mask of the nonzero coefficients in zigzag order.
+		 */
+		public long quantizeTrellis(BlockScratch scratch, boolean isLuminance, HuffmanTable acTable) {
+			float[] divisors = isLuminance ? divisors_luminance : divisors_chrominance;
+			float[] coeffs = scratch.coeffs;
+			int[] out = scratch.quantized;
+			float[] zeroCost = scratch.zeroCost;
+			float[] pathCost = scratch.pathCost;
+			int[] pathPrevious = scratch.pathPrevious;
+			int[] pathValue = scratch.pathValue;
+
+			// Lambda as in mozjpeg, converted to a cost per bit in squared steps.
+			float norm = 0;
+			for (int i = 1; i < 64; i++) {
+				float c = coeffs[i] * AAN_INVERSE[i];
+				norm += c * c;
+			}
+			float lambda = (float) ((LAMBDA_SCALE2 + norm / 63) / (64 * LAMBDA_SCALE1));
+
+			out[0] = Math.round(coeffs[0] * divisors[0]);
+			long candidates = 0;
+			float sum = 0;
+			zeroCost[0] = 0;
+			for (int k = 1; k < 64; k++) {
+				int i = JpegInfo.JPEG_NATURAL_ORDER[k];
+				float x = coeffs[i] * divisors[i];
+				out[k] = Math.round(x);
+				sum += x * x;
+				zeroCost[k] = sum;
+				if (out[k] != 0) {
+					candidates |= 1L << k;
+				}
+			}
+
+			// pathCost[k] is the cheapest way to code positions 1..k with k the
+			// last nonzero one. Position 0 starts every path.
+			int zrlBits = acTable.sizes[0xF0];
+			pathCost[0] = 0;
+			long reached = 1;
+			for (long remaining = candidates; remaining != 0; remaining &= remaining - 1) {
+				int k = Long.numberOfTrailingZeros(remaining);
+				float x = Math.abs(coeffs[JpegInfo.JPEG_NATURAL_ORDER[k]] * divisors[JpegInfo.JPEG_NATURAL_ORDER[k]]);
+				int rounded = Math.round(x);
+				float best = Float.MAX_VALUE;
+				for (int value = rounded; value >= Math.max(1, rounded - 1); value--) {
+					int category = 32 - Integer.numberOfLeadingZeros(value);
+					float error = (x - value) * (x - value);
+					// Earlier positions first, stopping once the zeros between cost too much.
+					for (long previous = reached; previous != 0; previous ^= 1L << (63 - Long
+							.numberOfLeadingZeros(previous))) {
+						int j = 63 - Long.numberOfLeadingZeros(previous);
+						float zeros = zeroCost[k - 1] - zeroCost[j];
+						if (zeros + error >= best) {
+							break;
+						}
+						int run = k - j - 1;
+						int symbolBits = acTable.sizes[((run & 15) << 4) | category];
+						if (symbolBits == 0 || (run > 15 && zrlBits == 0)) {
+							continue;
+						}
+						int bits = (run >> 4) * zrlBits + symbolBits + category;
+						float cost = pathCost[j] + zeros + error + lambda * bits;
+						if (cost < best) {
+							best = cost;
+							pathPrevious[k] = j;
+							pathValue[k] = value;
+						}
 					}
-					;
 				}
-			} catch (InterruptedException e) {
+				if (best < Float.MAX_VALUE) {
+					pathCost[k] = best;
+					reached |= 1L << k;
+				}
+			}
+
+			// Pick where the block ends, paying for the zeros after it and an EOB.
+			int eobBits = acTable.sizes[0x00];
+			int last = 0;
+			float best = Float.MAX_VALUE;
+			for (long remaining = reached; remaining != 0; remaining &= remaining - 1) {
+				int k = Long.numberOfTrailingZeros(remaining);
+				float cost = pathCost[k] + zeroCost[63] - zeroCost[k] + (k < 63 ? lambda * eobBits : 0);
+				if (cost < best) {
+					best = cost;
+					last = k;
+				}
 			}
-			;
 
-			float[][] fullY = new float[paddedHeight][paddedWidth];
-			float[][] fullCb = new float[paddedHeight][paddedWidth];
-			float[][] fullCr = new float[paddedHeight][paddedWidth];
+			long nonzero = out[0] != 0 ? 1 : 0;
+			Arrays.fill(out, 1, 64, 0);
+			for (int k = last; k > 0; k = pathPrevious[k]) {
+				float x = coeffs[JpegInfo.JPEG_NATURAL_ORDER[k]];
+				out[k] = x < 0 ? -pathValue[k] : pathValue[k];
+				nonzero |= 1L << k;
+			}
+			return nonzero;
+		}
 
-			// Convert RGB pixels to YCbCr
-			for (int row = 0; row < imageHeight; row++) {
-				for (int col = 0; col < imageWidth; col++) {
-					int pixel = pixels[row * imageWidth + col];
-					int r = (pixel >> 16) & 0xff;
-					int g = (pixel >> 8) & 0xff;
-					int b = pixel & 0xff;
+		/**
+		 * Copies a row-major block into out in zigzag order.
+		 *
+		 * @return The mask of the nonzero coefficients in zigzag order.
+		 */
+		static long toZigzag(int[] block, int[] out) {
+			long nonzero = 0;
+			for (int k = 0; k < 64; k++) {
+				int value = block[JpegInfo.JPEG_NATURAL_ORDER[k]];
+				out[k] = value;
+				nonzero |= (long) ((value | -value) >>> 31) << k;
+			}
+			return nonzero;
+		}
 
-					// The following three lines are a more correct color conversion but
-					// the current conversion technique is sufficient and results in a higher
-					// compression rate.
+		public int[] getQuantumLuminance() {
+			return quantum_luminance;
+		}
 
-					// Y[y][x] = 16 + (float)(0.8588*(0.299 * (float)r + 0.587 * (float)g + 0.114 *
-					// (float)b ));
+		public int[] getQuantumChrominance() {
+			return quantum_chrominance;
+		}
+	}
 
-					// Cb1[y][x] = 128 + (float)(0.8784*(-0.16874 * (float)r - 0.33126 * (float)g +
-					// 0.5 * (float)b));
+	/**
+	 * One scan of a progressive JPEG: the components it covers, its spectral
+	 * band [ss, se] in zigzag order, and the successive-approximation bit
+	 * positions ah (previous) and al (current).
+	 */
+	public static class Scan {
+		final int[] components;
+		final int ss;
+		final int se;
+		final int ah;
+		final int al;
 
-					// Cr1[y][x] = 128 + (float)(0.8784*(0.5 * (float)r - 0.41869 * (float)g -
-					// 0.08131 * (float)b));
-					fullY[row][col] = (float) (0.299 * r + 0.587 * g + 0.114 * b);
-					fullCb[row][col] = (float) (128 - 0.168736 * r - 0.331264 * g + 0.5 * b);
-					fullCr[row][col] = (float) (128 + 0.5 * r - 0.418688 * g - 0.081312 * b);
+		/**
+		 * Components are 0 (Y), 1 (Cb) and 2 (Cr). Scans of AC coefficients may
+		 * only cover one component.
+		 */
+		public Scan(int[] components, int ss, int se, int ah, int al) {
+			if (ss < 0 || se > 63 || ss > se || (ss == 0 && se != 0) || al < 0 || al > 13
+					|| (ah != 0 && ah != al + 1)) {
+				throw new IllegalArgumentException("Invalid spectral band or bit positions");
+			}
+			if (components.length == 0 || (ss > 0 && components.length != 1)) {
+				throw new IllegalArgumentException("AC scans must cover exactly one component");
+			}
+			for (int component : components) {
+				if (component < 0 || component > 2) {
+					throw new IllegalArgumentException("Invalid component: " + component);
 				}
 			}
+			this.components = components.clone();
+			this.ss = ss;
+			this.se = se;
+			this.ah = ah;
+			this.al = al;
+		}
 
-			// Handle image padding
-			for (int row = 0; row < paddedHeight; row++) {
-				for (int col = 0; col < paddedWidth; col++) {
-					if (row >= imageHeight || col >= imageWidth) {
-						int srcRow = Math.min(row, imageHeight - 1);
-						int srcCol = Math.min(col, imageWidth - 1);
-						fullY[row][col] = fullY[srcRow][srcCol];
-						fullCb[row][col] = fullCb[srcRow][srcCol];
-						fullCr[row][col] = fullCr[srcRow][srcCol];
-					}
-				}
+		/**
+		 * The scan script of libjpeg's jpeg_simple_progression() for YCbCr or
+		 * grayscale.
+		 */
+		static Scan[] defaultScript(int numComponents) {
+			if (numComponents == 1) {
+				int[] y = { 0 };
+				return new Scan[] {
+						new Scan(y, 0, 0, 0, 1),
+						new Scan(y, 1, 5, 0, 2),
+						new Scan(y, 6, 63, 0, 2),
+						new Scan(y, 1, 63, 2, 1),
+						new Scan(y, 0, 0, 1, 0),
+						new Scan(y, 1, 63, 1, 0)
+				};
 			}
-			this.y = fullY;
+			int[] all = { 0, 1, 2 };
+			return new Scan[] {
+					new Scan(all, 0, 0, 0, 1),
+					new Scan(new int[] { 0 }, 1, 5, 0, 2),
+					new Scan(new int[] { 2 }, 1, 63, 0, 1),
+					new Scan(new int[] { 1 }, 1, 63, 0, 1),
+					new Scan(new int[] { 0 }, 6, 63, 0, 2),
+					new Scan(new int[] { 0 }, 1, 63, 2, 1),
+					new Scan(all, 0, 0, 1, 0),
+					new Scan(new int[] { 2 }, 1, 63, 1, 0),
+					new Scan(new int[] { 1 }, 1, 63, 1, 0),
+					new Scan(new int[] { 0 }, 1, 63, 1, 0)
+			};
+		}
+	}
 
-			// Perform downsampling
-			if (MaxHsampleFactor > 1 || MaxVsampleFactor > 1) {
-				this.cb = downsample(fullCb, MaxHsampleFactor, MaxVsampleFactor);
-				this.cr = downsample(fullCr, MaxHsampleFactor, MaxVsampleFactor);
-			} else {
-				this.cb = fullCb;
-				this.cr = fullCr;
+	/**
+	 * Encodes progressive scans from the coefficient buffer, following
+	 * jcphuff.c of the IJG library. The same code either gathers symbol
+	 * frequencies (without a bit stream) or writes the scan.
+	 */
+	static class ProgressiveEncoder {
+		// Limit on correction bits buffered while an EOB run is pending.
+		private static final int MAX_CORRECTION_BITS = 1000;
+
+		private final JpegInfo jpegInfo;
+		private final short[] coefficients;
+		private final int[] mcuComponents;
+		private final int mcusPerRow;
+		private final int mcuCount;
+		// Index of each component's first block within an MCU.
+		private final int[] firstBlock = new int[3];
+
+		// State of the current scan
+		private Scan scan;
+		private BitStream bitStream;
+		private long[][] dcFrequencies;
+		private long[][] acFrequencies;
+		private HuffmanTable[] dcTables;
+		private HuffmanTable[] acTables;
+		private final int[] lastDcValue = new int[3];
+		private int eobRun;
+		private final int[] correctionBits = new int[MAX_CORRECTION_BITS];
+		private int pendingCorrections;
+		private final int[] absValues = new int[64];
+
+		ProgressiveEncoder(JpegInfo jpegInfo, short[] coefficients, int[] mcuComponents, int mcusPerRow) {
+			this.jpegInfo = jpegInfo;
+			this.coefficients = coefficients;
+			this.mcuComponents = mcuComponents;
+			this.mcusPerRow = mcusPerRow;
+			this.mcuCount = coefficients.length / (64 * mcuComponents.length);
+			for (int block = mcuComponents.length - 1; block >= 0; block--) {
+				firstBlock[mcuComponents[block]] = block;
 			}
 		}
 
 		/**
-		 * Downsamples a color component
+		 * Runs a scan without output, counting the Huffman symbols it needs.
+		 *
+		 * @return DC and AC symbol frequencies, indexed by [DC/AC][table][symbol].
 		 */
-		private float[][] downsample(float[][] C, int hFactor, int vFactor) {
-			int newWidth = C[0].length / hFactor;
-			int newHeight = C.length / vFactor;
-			float[][] output = new float[newHeight][newWidth];
-			for (int y = 0; y < newHeight; y++) {
-				for (int x = 0; x < newWidth; x++) {
-					float sum = 0;
-					for (int i = 0; i < vFactor; i++) {
-						for (int j = 0; j < hFactor; j++) {
-							sum += C[y * vFactor + i][x * hFactor + j];
+		long[][][] gatherStatistics(Scan scan) {
+			dcFrequencies = new long[2][257];
+			acFrequencies = new long[2][257];
+			this.bitStream = null;
+			runScan(scan);
+			return new long[][][] { dcFrequencies, acFrequencies };
+		}
+
+		/**
+		 * Encodes a scan into the bit stream with the given tables.
+		 */
+		void encodeScan(Scan scan, HuffmanTable[] dcTables, HuffmanTable[] acTables, BitStream bitStream) {
+			this.dcTables = dcTables;
+			this.acTables = acTables;
+			this.bitStream = bitStream;
+			runScan(scan);
+		}
+
+		private void runScan(Scan scan) {
+			this.scan = scan;
+			Arrays.fill(lastDcValue, 0);
+			eobRun = 0;
+			pendingCorrections = 0;
+
+			int blocksPerMcu = mcuComponents.length;
+			if (scan.components.length > 1) {
+				// Interleaved scan, in MCU order
+				for (int mcu = 0; mcu < mcuCount; mcu++) {
+					for (int block = 0; block < blocksPerMcu; block++) {
+						int component = mcuComponents[block];
+						if (inScan(component)) {
+							encodeBlock((mcu * blocksPerMcu + block) * 64, component);
 						}
 					}
-					output[y][x] = sum / (hFactor * vFactor);
 				}
+			} else {
+				// Non-interleaved scan, covering only the blocks within the component
+				int component = scan.components[0];
+				int h = jpegInfo.HsampleFactor[component];
+				int v = jpegInfo.VsampleFactor[component];
+				int width = (jpegInfo.imageWidth * h + jpegInfo.MaxHsampleFactor - 1) / jpegInfo.MaxHsampleFactor;
+				int height = (jpegInfo.imageHeight * v + jpegInfo.MaxVsampleFactor - 1) / jpegInfo.MaxVsampleFactor;
+				int blocksWide = (width + 7) / 8;
+				int blocksHigh = (height + 7) / 8;
+				for (int by = 0; by < blocksHigh; by++) {
+					for (int bx = 0; bx < blocksWide; bx++) {
+						int mcu = (by / v) * mcusPerRow + bx / h;
+						int block = firstBlock[component] + (by % v) * h + bx % h;
+						encodeBlock((mcu * blocksPerMcu + block) * 64, component);
+					}
+				}
+			}
+			emitEobRun();
+		}
+
+		private boolean inScan(int component) {
+			for (int c : scan.components) {
+				if (c == component) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void encodeBlock(int offset, int component) {
+			int table = component == 0 ? 0 : 1;
+			if (scan.ss == 0) {
+				if (scan.ah == 0) {
+					encodeDCFirst(offset, component, table);
+				} else {
+					emitBits((coefficients[offset] >> scan.al) & 1, 1);
+				}
+			} else if (scan.ah == 0) {
+				encodeACFirst(offset, table);
+			} else {
+				encodeACRefine(offset, table);
+			}
+		}
+
+		private void encodeDCFirst(int offset, int component, int table) {
+			int value = coefficients[offset] >> scan.al;
+			int diff = value - lastDcValue[component];
+			lastDcValue[component] = value;
+
+			int nbits = 32 - Integer.numberOfLeadingZeros(Math.abs(diff));
+			emitSymbol(dcFrequencies, dcTables, table, nbits);
+			emitBits(diff < 0 ? diff - 1 : diff, nbits);
+		}
+
+		private void encodeACFirst(int offset, int table) {
+			int run = 0;
+			for (int k = scan.ss; k <= scan.se; k++) {
+				int value = coefficients[offset + k];
+				int magnitude = Math.abs(value) >> scan.al;
+				if (magnitude == 0) {
+					run++;
+					continue;
+				}
+				emitEobRun();
+				while (run > 15) {
+					emitSymbol(acFrequencies, acTables, table, 0xF0);
+					run -= 16;
+				}
+				int nbits = 32 - Integer.numberOfLeadingZeros(magnitude);
+				emitSymbol(acFrequencies, acTables, table, (run << 4) + nbits);
+				emitBits(value < 0 ? ~magnitude : magnitude, nbits);
+				run = 0;
+			}
+			if (run > 0) {
+				eobRun++;
+				if (eobRun == 0x7FFF) {
+					emitEobRun();
+				}
+			}
+		}
+
+		private void encodeACRefine(int offset, int table) {
+			// Position of the last coefficient that becomes nonzero in this scan
+			int eob = 0;
+			for (int k = scan.ss; k <= scan.se; k++) {
+				absValues[k] = Math.abs(coefficients[offset + k]) >> scan.al;
+				if (absValues[k] == 1) {
+					eob = k;
+				}
+			}
+
+			int run = 0;
+			// Correction bits of this block are buffered after those pending with the EOB run.
+			int blockStart = pendingCorrections;
+			int blockBits = 0;
+			for (int k = scan.ss; k <= scan.se; k++) {
+				int magnitude = absValues[k];
+				if (magnitude == 0) {
+					run++;
+					continue;
+				}
+				while (run > 15 && k <= eob) {
+					emitEobRun();
+					emitSymbol(acFrequencies, acTables, table, 0xF0);
+					run -= 16;
+					emitCorrectionBits(blockStart, blockBits);
+					blockStart = 0;
+					blockBits = 0;
+				}
+				if (magnitude > 1) {
+					// Previously nonzero: only its next bit goes out, as a correction bit.
+					correctionBits[blockStart + blockBits++] = magnitude & 1;
+					continue;
+				}
+				emitEobRun();
+				emitSymbol(acFrequencies, acTables, table, (run << 4) + 1);
+				emitBits(coefficients[offset + k] < 0 ? 0 : 1, 1);
+				emitCorrectionBits(blockStart, blockBits);
+				blockStart = 0;
+				blockBits = 0;
+				run = 0;
+			}
+			if (run > 0 || blockBits > 0) {
+				eobRun++;
+				pendingCorrections += blockBits;
+				if (eobRun == 0x7FFF || pendingCorrections > MAX_CORRECTION_BITS - 63) {
+					emitEobRun();
+				}
+			}
+		}
+
+		/**
+		 * Emits the pending EOB run, followed by the correction bits buffered
+		 * during it.
+		 */
+		private void emitEobRun() {
+			if (eobRun == 0) {
+				return;
+			}
+			int nbits = 31 - Integer.numberOfLeadingZeros(eobRun);
+			int table = scan.components[0] == 0 ? 0 : 1;
+			emitSymbol(acFrequencies, acTables, table, nbits << 4);
+			emitBits(eobRun, nbits);
+			eobRun = 0;
+
+			emitCorrectionBits(0, pendingCorrections);
+			pendingCorrections = 0;
+		}
+
+		private void emitCorrectionBits(int start, int count) {
+			for (int i = start; i < start + count; i++) {
+				emitBits(correctionBits[i], 1);
+			}
+		}
+
+		private void emitSymbol(long[][] frequencies, HuffmanTable[] tables, int table, int symbol) {
+			if (bitStream == null) {
+				frequencies[table][symbol]++;
+			} else {
+				HuffmanTable huffmanTable = tables[table];
+				bitStream.write(huffmanTable.codes[symbol], huffmanTable.sizes[symbol]);
+			}
+		}
+
+		private void emitBits(int value, int size) {
+			if (bitStream != null && size > 0) {
+				bitStream.write(value, size);
 			}
-			return output;
 		}
 	}
 
-	/*
-	 * DCT - A Java implementation of the Discreet Cosine Transform
+	/**
+	 * Transforms and quantizes 8x8 blocks. Implementations hold only immutable
+	 * tables, so one engine is shared by all encoding threads.
 	 */
-	static class DCT {
-		DCT() {
+	interface DctEngine {
+		/**
+		 * Transforms the 8x8 block starting at offset in a plane with the given
+		 * stride, and leaves the quantized coefficients in scratch.quantized in
+		 * zigzag order, and the mask of those that are not zero in
+		 * scratch.nonzero.
+		 */
+		void transformBlock(float[] src, int offset, int stride, boolean isLuminance, BlockScratch scratch);
+
+		/**
+		 * Transforms a block like transformBlock(), adding the time taken to
+		 * scratch.metrics. Engines that quantize in the same pass as the DCT
+		 * count it all as DCT.
+		 */
+		default void transformBlockTimed(float[] src, int offset, int stride, boolean isLuminance,
+				BlockScratch scratch) {
+			long start = System.nanoTime();
+			transformBlock(src, offset, stride, isLuminance, scratch);
+			scratch.metrics.add(EncoderMetrics.Stage.DCT, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * The floating-point AAN DCT followed by the Quantizer.
+	 */
+	static class FloatDctEngine implements DctEngine {
+		private final DCT dct;
+		private final Quantizer quantizer;
+
+		FloatDctEngine(DCT dct, Quantizer quantizer) {
+			this.dct = dct;
+			this.quantizer = quantizer;
+		}
+
+		@Override
+		public void transformBlock(float[] src, int offset, int stride, boolean isLuminance, BlockScratch scratch) {
+			dct.forwardDCT(src, offset, stride, scratch.coeffs);
+			scratch.nonzero = quantizer.quantizeInto(scratch.coeffs, scratch.workspace, scratch.quantized,
+					isLuminance);
+		}
+
+		@Override
+		public void transformBlockTimed(float[] src, int offset, int stride, boolean isLuminance,
+				BlockScratch scratch) {
+			long start = System.nanoTime();
+			dct.forwardDCT(src, offset, stride, scratch.coeffs);
+			long transformed = System.nanoTime();
+			scratch.nonzero = quantizer.quantizeInto(scratch.coeffs, scratch.workspace, scratch.quantized,
+					isLuminance);
+			scratch.metrics.add(EncoderMetrics.Stage.DCT, transformed - start);
+			scratch.metrics.add(EncoderMetrics.Stage.QUANTIZE, System.nanoTime() - transformed);
+		}
+	}
+
+	/**
+	 * The floating-point AAN DCT followed by trellis quantization against the
+	 * AC code lengths of a Huffman table set.
+	 */
+	static class TrellisDctEngine implements DctEngine {
+		private final DCT dct;
+		private final Quantizer quantizer;
+		private final Huffman huffman;
+
+		TrellisDctEngine(DCT dct, Quantizer quantizer, Huffman huffman) {
+			this.dct = dct;
+			this.quantizer = quantizer;
+			this.huffman = huffman;
+		}
+
+		@Override
+		public void transformBlock(float[] src, int offset, int stride, boolean isLuminance, BlockScratch scratch) {
+			dct.forwardDCT(src, offset, stride, scratch.coeffs);
+			scratch.nonzero = quantizer.quantizeTrellis(scratch, isLuminance, huffman.getAcTable(isLuminance));
+		}
+
+		@Override
+		public void transformBlockTimed(float[] src, int offset, int stride, boolean isLuminance,
+				BlockScratch scratch) {
+			long start = System.nanoTime();
+			dct.forwardDCT(src, offset, stride, scratch.coeffs);
+			long transformed = System.nanoTime();
+			scratch.nonzero = quantizer.quantizeTrellis(scratch, isLuminance, huffman.getAcTable(isLuminance));
+			scratch.metrics.add(EncoderMetrics.Stage.DCT, transformed - start);
+			scratch.metrics.add(EncoderMetrics.Stage.QUANTIZE, System.nanoTime() - transformed);
+		}
+	}
+
+	/**
+	 * Integer-only DCT and quantization, following jfdctint.c (islow) and
+	 * jfdctfst.c (ifast) from the IJG library. The quantization divisors,
+	 * including the DCT output scaling, are folded into reciprocal multipliers
+	 * so that quantizing takes a multiply and a shift per coefficient.
+	 */
+	static class IntegerDctEngine implements DctEngine {
+		// islow constants, scaled by 2^13
+		private static final int CONST_BITS = 13;
+		private static final int PASS1_BITS = 2;
+		private static final int FIX_0_298631336 = 2446;
+		private static final int FIX_0_390180644 = 3196;
+		private static final int FIX_0_541196100 = 4433;
+		private static final int FIX_0_765366865 = 6270;
+		private static final int FIX_0_899976223 = 7373;
+		private static final int FIX_1_175875602 = 9633;
+		private static final int FIX_1_501321110 = 12299;
+		private static final int FIX_1_847759065 = 15137;
+		private static final int FIX_1_961570560 = 16069;
+		private static final int FIX_2_053119869 = 16819;
+		private static final int FIX_2_562915447 = 20995;
+		private static final int FIX_3_072711026 = 25172;
+
+		// ifast constants, scaled by 2^8
+		private static final int FAST_BITS = 8;
+		private static final int FAST_0_382683433 = 98;
+		private static final int FAST_0_541196100 = 139;
+		private static final int FAST_0_707106781 = 181;
+		private static final int FAST_1_306562965 = 334;
+
+		private final boolean fast;
+		// Rounding bias (half the divisor) and 2^32 / divisor, per coefficient.
+		private final int[] biasLuminance = new int[64];
+		private final int[] biasChrominance = new int[64];
+		private final long[] reciprocalLuminance = new long[64];
+		private final long[] reciprocalChrominance = new long[64];
+
+		IntegerDctEngine(Quantizer quantizer, boolean fast) {
+			this.fast = fast;
+			setDivisors(quantizer.getQuantumLuminance(), biasLuminance, reciprocalLuminance);
+			setDivisors(quantizer.getQuantumChrominance(), biasChrominance, reciprocalChrominance);
 		}
 
 		/**
-		 * Performs a forward DCT using the AAN algorithm.
+		 * Computes the divisor for each coefficient. Both DCTs scale their
+		 * output up by 8, and ifast additionally by the AAN factors.
 		 */
-		public double[][] forwardDCT(double[][] input) {
-			double[][] output = new double[8][8];
-			double tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7;
-			double tmp10, tmp11, tmp12, tmp13;
-			double z1, z2, z3, z4, z5, z11, z13;
-			int i, j;
+		private void setDivisors(int[] table, int[] bias, long[] reciprocal) {
+			for (int i = 0; i < 64; i++) {
+				int divisor = fast ? (int) Math.round(Quantizer.aanDivisor(table[i], i)) : table[i] * 8;
+				bias[i] = divisor >> 1;
+				// Rounded up, which makes the product exact for all coefficient ranges.
+				reciprocal[i] = ((1L << 32) + divisor - 1) / divisor;
+			}
+		}
 
-			// Subtracts 128 from the input values
-			for (i = 0; i < 8; i++) {
-				for (j = 0; j < 8; j++) {
-					output[i][j] = (input[i][j] - 128.0);
+		@Override
+		public void transformBlock(float[] src, int offset, int stride, boolean isLuminance, BlockScratch scratch) {
+			int[] data = scratch.workspace;
+			for (int i = 0; i < 8; i++) {
+				int in = offset + i * stride;
+				for (int j = 0; j < 8; j++) {
+					data[i * 8 + j] = (int) (src[in + j] + 0.5f) - 128;
 				}
 			}
 
-			for (i = 0; i < 8; i++) {
-				tmp0 = output[i][0] + output[i][7];
-				tmp7 = output[i][0] - output[i][7];
-				tmp1 = output[i][1] + output[i][6];
-				tmp6 = output[i][1] - output[i][6];
-				tmp2 = output[i][2] + output[i][5];
-				tmp5 = output[i][2] - output[i][5];
-				tmp3 = output[i][3] + output[i][4];
-				tmp4 = output[i][3] - output[i][4];
+			if (fast) {
+				ifast(data);
+			} else {
+				islow(data);
+			}
+
+			int[] bias = isLuminance ? biasLuminance : biasChrominance;
+			long[] reciprocal = isLuminance ? reciprocalLuminance : reciprocalChrominance;
+			for (int i = 0; i < 64; i++) {
+				int value = data[i];
+				if (value < 0) {
+					data[i] = -(int) (((-value + bias[i]) * reciprocal[i]) >>> 32);
+				} else {
+					data[i] = (int) (((value + bias[i]) * reciprocal[i]) >>> 32);
+				}
+			}
+			scratch.nonzero = Quantizer.toZigzag(data, scratch.quantized);
+		}
+
+		/**
+		 * Accurate integer DCT, in place. The output is scaled up by 8.
+		 */
+		private static void islow(int[] data) {
+			int tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7;
+			int tmp10, tmp11, tmp12, tmp13;
+			int z1, z2, z3, z4, z5;
+
+			// Rows, scaling the results up by 2^PASS1_BITS
+			for (int p = 0; p < 64; p += 8) {
+				tmp0 = data[p] + data[p + 7];
+				tmp7 = data[p] - data[p + 7];
+				tmp1 = data[p + 1] + data[p + 6];
+				tmp6 = data[p + 1] - data[p + 6];
+				tmp2 = data[p + 2] + data[p + 5];
+				tmp5 = data[p + 2] - data[p + 5];
+				tmp3 = data[p + 3] + data[p + 4];
+				tmp4 = data[p + 3] - data[p + 4];
 
 				tmp10 = tmp0 + tmp3;
 				tmp13 = tmp0 - tmp3;
 				tmp11 = tmp1 + tmp2;
 				tmp12 = tmp1 - tmp2;
 
-				output[i][0] = tmp10 + tmp11;
-				output[i][4] = tmp10 - tmp11;
-
-				z1 = (tmp12 + tmp13) * (double) 0.707106781;
-				output[i][2] = tmp13 + z1;
-				output[i][6] = tmp13 - z1;
-
-				tmp10 = tmp4 + tmp5;
-				tmp11 = tmp5 + tmp6;
-				tmp12 = tmp6 + tmp7;
+				data[p] = (tmp10 + tmp11) << PASS1_BITS;
+				data[p + 4] = (tmp10 - tmp11) << PASS1_BITS;
 
-				z5 = (tmp10 - tmp12) * (double) 0.382683433;
-				z2 = ((double) 0.541196100) * tmp10 + z5;
-				z4 = ((double) 1.306562965) * tmp12 + z5;
-				z3 = tmp11 * ((double) 0.707106781);
+				z1 = (tmp12 + tmp13) * FIX_0_541196100;
+				data[p + 2] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS - PASS1_BITS);
+				data[p + 6] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS - PASS1_BITS);
 
-				z11 = tmp7 + z3;
-				z13 = tmp7 - z3;
+				z1 = tmp4 + tmp7;
+				z2 = tmp5 + tmp6;
+				z3 = tmp4 + tmp6;
+				z4 = tmp5 + tmp7;
+				z5 = (z3 + z4) * FIX_1_175875602;
 
-				output[i][5] = z13 + z2;
-				output[i][3] = z13 - z2;
-				output[i][1] = z11 + z4;
-				output[i][7] = z11 - z4;
+				tmp4 *= FIX_0_298631336;
+				tmp5 *= FIX_2_053119869;
+				tmp6 *= FIX_3_072711026;
+				tmp7 *= FIX_1_501321110;
+				z1 *= -FIX_0_899976223;
+				z2 *= -FIX_2_562915447;
+				z3 = z3 * -FIX_1_961570560 + z5;
+				z4 = z4 * -FIX_0_390180644 + z5;
+
+				data[p + 7] = descale(tmp4 + z1 + z3, CONST_BITS - PASS1_BITS);
+				data[p + 5] = descale(tmp5 + z2 + z4, CONST_BITS - PASS1_BITS);
+				data[p + 3] = descale(tmp6 + z2 + z3, CONST_BITS - PASS1_BITS);
+				data[p + 1] = descale(tmp7 + z1 + z4, CONST_BITS - PASS1_BITS);
 			}
 
-			for (i = 0; i < 8; i++) {
-				tmp0 = output[0][i] + output[7][i];
-				tmp7 = output[0][i] - output[7][i];
-				tmp1 = output[1][i] + output[6][i];
-				tmp6 = output[1][i] - output[6][i];
-				tmp2 = output[2][i] + output[5][i];
-				tmp5 = output[2][i] - output[5][i];
-				tmp3 = output[3][i] + output[4][i];
-				tmp4 = output[3][i] - output[4][i];
+			// Columns, removing the PASS1_BITS scaling
+			for (int p = 0; p < 8; p++) {
+				tmp0 = data[p] + data[p + 56];
+				tmp7 = data[p] - data[p + 56];
+				tmp1 = data[p + 8] + data[p + 48];
+				tmp6 = data[p + 8] - data[p + 48];
+				tmp2 = data[p + 16] + data[p + 40];
+				tmp5 = data[p + 16] - data[p + 40];
+				tmp3 = data[p + 24] + data[p + 32];
+				tmp4 = data[p + 24] - data[p + 32];
 
 				tmp10 = tmp0 + tmp3;
 				tmp13 = tmp0 - tmp3;
 				tmp11 = tmp1 + tmp2;
 				tmp12 = tmp1 - tmp2;
 
-				output[0][i] = tmp10 + tmp11;
-				output[4][i] = tmp10 - tmp11;
+				data[p] = descale(tmp10 + tmp11, PASS1_BITS);
+				data[p + 32] = descale(tmp10 - tmp11, PASS1_BITS);
 
-				z1 = (tmp12 + tmp13) * (double) 0.707106781;
-				output[2][i] = tmp13 + z1;
-				output[6][i] = tmp13 - z1;
-
-				tmp10 = tmp4 + tmp5;
-				tmp11 = tmp5 + tmp6;
-				tmp12 = tmp6 + tmp7;
+				z1 = (tmp12 + tmp13) * FIX_0_541196100;
+				data[p + 16] = descale(z1 + tmp13 * FIX_0_765366865, CONST_BITS + PASS1_BITS);
+				data[p + 48] = descale(z1 - tmp12 * FIX_1_847759065, CONST_BITS + PASS1_BITS);
 
-				z5 = (tmp10 - tmp12) * (double) 0.382683433;
-				z2 = ((double) 0.541196100) * tmp10 + z5;
-				z4 = ((double) 1.306562965) * tmp12 + z5;
-				z3 = tmp11 * ((double) 0.707106781);
+				z1 = tmp4 + tmp7;
+				z2 = tmp5 + tmp6;
+				z3 = tmp4 + tmp6;
+				z4 = tmp5 + tmp7;
+				z5 = (z3 + z4) * FIX_1_175875602;
 
-				z11 = tmp7 + z3;
-				z13 = tmp7 - z3;
+				tmp4 *= FIX_0_298631336;
+				tmp5 *= FIX_2_053119869;
+				tmp6 *= FIX_3_072711026;
+				tmp7 *= FIX_1_501321110;
+				z1 *= -FIX_0_899976223;
+				z2 *= -FIX_2_562915447;
+				z3 = z3 * -FIX_1_961570560 + z5;
+				z4 = z4 * -FIX_0_390180644 + z5;
 
-				output[5][i] = z13 + z2;
-				output[3][i] = z13 - z2;
-				output[1][i] = z11 + z4;
-				output[7][i] = z11 - z4;
+				data[p + 56] = descale(tmp4 + z1 + z3, CONST_BITS + PASS1_BITS);
+				data[p + 40] = descale(tmp5 + z2 + z4, CONST_BITS + PASS1_BITS);
+				data[p + 24] = descale(tmp6 + z2 + z3, CONST_BITS + PASS1_BITS);
+				data[p + 8] = descale(tmp7 + z1 + z4, CONST_BITS + PASS1_BITS);
 			}
-
-			return output;
 		}
-	}
 
-	/**
-	 * Handles quantization of DCT coefficients
-	 */
-	static class Quantizer {
-		private int[] quantum_luminance = new int[64];
-		private int[] quantum_chrominance = new int[64];
+		/**
+		 * Fast integer AAN DCT, in place. The output is scaled up by 8 and the
+		 * AAN factors.
+		 */
+		private static void ifast(int[] data) {
+			for (int pass = 0; pass < 2; pass++) {
+				// Rows on the first pass, columns on the second
+				int step = pass == 0 ? 1 : 8;
+				int next = pass == 0 ? 8 : 1;
+				for (int p = 0, n = 0; n < 8; p += next, n++) {
+					int tmp0 = data[p] + data[p + 7 * step];
+					int tmp7 = data[p] - data[p + 7 * step];
+					int tmp1 = data[p + step] + data[p + 6 * step];
+					int tmp6 = data[p + step] - data[p + 6 * step];
+					int tmp2 = data[p + 2 * step] + data[p + 5 * step];
+					int tmp5 = data[p + 2 * step] - data[p + 5 * step];
+					int tmp3 = data[p + 3 * step] + data[p + 4 * step];
+					int tmp4 = data[p + 3 * step] - data[p + 4 * step];
 
-		private static int[] QUANTUM_LUMINANCE = {
-				16, 11, 10, 16, 24, 40, 51, 61,
-				12, 12, 14, 19, 26, 58, 60, 55,
-				14, 13, 16, 24, 40, 57, 69, 56,
-				14, 17, 22, 29, 51, 87, 80, 62,
-				18, 22, 37, 56, 68, 109, 103, 77,
-				24, 35, 55, 64, 81, 104, 113, 92,
-				49, 64, 78, 87, 103, 121, 120, 101,
-				72, 92, 95, 98, 112, 100, 103, 99
-		};
+					int tmp10 = tmp0 + tmp3;
+					int tmp13 = tmp0 - tmp3;
+					int tmp11 = tmp1 + tmp2;
+					int tmp12 = tmp1 - tmp2;
 
-		private static int[] QUANTUM_CHROMINANCE = {
-				17, 18, 24, 47, 99, 99, 99, 99,
-				18, 21, 26, 66, 99, 99, 99, 99,
-				24, 26, 56, 99, 99, 99, 99, 99,
-				47, 66, 99, 99, 99, 99, 99, 99,
-				99, 99, 99, 99, 99, 99, 99, 99,
-				99, 99, 99, 99, 99, 99, 99, 99,
-				99, 99, 99, 99, 99, 99, 99, 99,
-				99, 99, 99, 99, 99, 99, 99, 99
-		};
+					data[p] = tmp10 + tmp11;
+					data[p + 4 * step] = tmp10 - tmp11;
 
-		/**
-		 * Initializes the quantizer, scaling the base tables according to the quality
-		 * setting
-		 */
-		Quantizer(int quality) {
-			int scale = quality;
+					int z1 = (tmp12 + tmp13) * FAST_0_707106781 >> FAST_BITS;
+					data[p + 2 * step] = tmp13 + z1;
+					data[p + 6 * step] = tmp13 - z1;
 
-			if (scale <= 0)
-				scale = 1;
-			if (scale > 100)
-				scale = 100;
-			if (scale < 50)
-				scale = 5000 / scale;
-			else
-				scale = 200 - scale * 2;
+					tmp10 = tmp4 + tmp5;
+					tmp11 = tmp5 + tmp6;
+					tmp12 = tmp6 + tmp7;
 
-			for (int i = 0; i < 64; i++) {
-				quantum_luminance[i] = Math.max(1, (QUANTUM_LUMINANCE[i] * scale + 50) / 100);
-				quantum_chrominance[i] = Math.max(1, (QUANTUM_CHROMINANCE[i] * scale + 50) / 100);
-			}
-		}
+					int z5 = (tmp10 - tmp12) * FAST_0_382683433 >> FAST_BITS;
+					int z2 = (tmp10 * FAST_0_541196100 >> FAST_BITS) + z5;
+					int z4 = (tmp12 * FAST_1_306562965 >> FAST_BITS) + z5;
+					int z3 = tmp11 * FAST_0_707106781 >> FAST_BITS;
 
-		/**
-		 * Quantizes a single 8x8 block of DCT coefficients.
-		 */
-		public int[] quantizeBlock(double[][] dctData, boolean isLuminance) {
-			int[] outputData = new int[64];
-			int[] table = isLuminance ? quantum_luminance : quantum_chrominance;
-			for (int i = 0; i < 8; i++) {
-				for (int j = 0; j < 8; j++) {
-					int index = i * 8 + j;
-					outputData[index] = (int) Math.round((dctData[i][j] / 8.0) / table[index]);
+					int z11 = tmp7 + z3;
+					int z13 = tmp7 - z3;
+
+					data[p + 5 * step] = z13 + z2;
+					data[p + 3 * step] = z13 - z2;
+					data[p + step] = z11 + z4;
+					data[p + 7 * step] = z11 - z4;
 				}
 			}
-			return outputData;
 		}
 
-		public int[] getQuantumLuminance() {
-			return quantum_luminance;
-		}
-
-		public int[] getQuantumChrominance() {
-			return quantum_chrominance;
+		private static int descale(int x, int n) {
+			return (x + (1 << (n - 1))) >> n;
 		}
 	}
 
@@ -720,6 +3487,26 @@ public class JpegEncoder {
 
 		Huffman() {
 			// Pre-builds the Huffman tables
+			buildTables();
+		}
+
+		/**
+		 * Uses the given tables instead of the standard ones.
+		 */
+		Huffman(int[] dcLuminanceBits, int[] dcLuminanceVal, int[] acLuminanceBits, int[] acLuminanceVal,
+				int[] dcChrominanceBits, int[] dcChrominanceVal, int[] acChrominanceBits, int[] acChrominanceVal) {
+			this.dcLuminanceBits = dcLuminanceBits;
+			this.dcLuminanceVal = dcLuminanceVal;
+			this.acLuminanceBits = acLuminanceBits;
+			this.acLuminanceVal = acLuminanceVal;
+			this.dcChrominanceBits = dcChrominanceBits;
+			this.dcChrominanceVal = dcChrominanceVal;
+			this.acChrominanceBits = acChrominanceBits;
+			this.acChrominanceVal = acChrominanceVal;
+			buildTables();
+		}
+
+		private void buildTables() {
 			dcLumTable = new HuffmanTable(dcLuminanceBits, dcLuminanceVal);
 			acLumTable = new HuffmanTable(acLuminanceBits, acLuminanceVal);
 			dcChromTable = new HuffmanTable(dcChrominanceBits, dcChrominanceVal);
@@ -727,11 +3514,14 @@ public class JpegEncoder {
 		}
 
 		/**
-		 * Encodes a single 8x8 block of quantized data.
+		 * Encodes a single 8x8 block of quantized data in zigzag order. Only the
+		 * coefficients set in the nonzero mask are visited: the zero runs
+		 * between them come from the distance between set bits.
 		 * 
 		 * @return The new DC value to be used for the next block's differential coding.
 		 */
-		public int encodeBlock(BitStream bitStream, int[] quantizedData, int lastDcValue, boolean isLuminance) {
+		public int encodeBlock(BitStream bitStream, int[] quantizedData, long nonzero, int lastDcValue,
+				boolean isLuminance) {
 			HuffmanTable dcTable = isLuminance ? dcLumTable : dcChromTable;
 			HuffmanTable acTable = isLuminance ? acLumTable : acChromTable;
 
@@ -740,33 +3530,85 @@ public class JpegEncoder {
 			int category = 32 - Integer.numberOfLeadingZeros(Math.abs(dcDiff));
 			if (dcDiff == 0)
 				category = 0;
-			bitStream.write(dcTable.codes[category], dcTable.sizes[category]);
-			if (category > 0) {
-				bitStream.write(dcDiff > 0 ? dcDiff : ((1 << category) - 1 + dcDiff), category);
-			}
+			// The Huffman code and the extra bits go out in one write.
+			int dcBits = dcDiff > 0 ? dcDiff : ((1 << category) - 1 + dcDiff);
+			bitStream.write((dcTable.codes[category] << category) | dcBits, dcTable.sizes[category] + category);
 
 			// AC coefficients are run-length encoded.
+			long remaining = nonzero & ~1L;
+			int last = 0;
+			while (remaining != 0) {
+				int k = Long.numberOfTrailingZeros(remaining);
+				remaining &= remaining - 1;
+				int zeroRun = k - last - 1;
+				for (int zrl = zeroRun >> 4; zrl > 0; zrl--) {
+					bitStream.write(acTable.codes[0xF0], acTable.sizes[0xF0]); // ZRL (Zero Run Length) code
+				}
+				zeroRun &= 15;
+				int acValue = quantizedData[k];
+				int acCategory = 32 - Integer.numberOfLeadingZeros(Math.abs(acValue));
+				int symbol = (zeroRun << 4) | acCategory;
+				int acBits = acValue > 0 ? acValue : ((1 << acCategory) - 1 + acValue);
+				bitStream.write((acTable.codes[symbol] << acCategory) | acBits, acTable.sizes[symbol] + acCategory);
+				last = k;
+			}
+			if (last < 63) {
+				bitStream.write(acTable.codes[0x00], acTable.sizes[0x00]); // EOB (End of Block) code
+			}
+			return quantizedData[0];
+		}
+
+		/**
+		 * Counts the symbols encodeBlock would emit for a block of quantized
+		 * data in zigzag order, without writing anything.
+		 *
+		 * @return The new DC value to be used for the next block's differential coding.
+		 */
+		public int countBlock(short[] data, int offset, int lastDcValue, long[] dcFrequencies,
+				long[] acFrequencies) {
+			int dcDiff = data[offset] - lastDcValue;
+			dcFrequencies[32 - Integer.numberOfLeadingZeros(Math.abs(dcDiff))]++;
+
 			int zeroRun = 0;
 			for (int i = 1; i < 64; i++) {
-				int acValue = quantizedData[JpegInfo.JPEG_NATURAL_ORDER[i]];
+				int acValue = data[offset + i];
 				if (acValue == 0) {
 					zeroRun++;
 				} else {
 					while (zeroRun > 15) {
-						bitStream.write(acTable.codes[0xF0], acTable.sizes[0xF0]); // ZRL (Zero Run Length) code
+						acFrequencies[0xF0]++;
 						zeroRun -= 16;
 					}
-					int acCategory = 32 - Integer.numberOfLeadingZeros(Math.abs(acValue));
-					int symbol = (zeroRun << 4) | acCategory;
-					bitStream.write(acTable.codes[symbol], acTable.sizes[symbol]);
-					bitStream.write(acValue > 0 ? acValue : ((1 << acCategory) - 1 + acValue), acCategory);
+					acFrequencies[(zeroRun << 4) | (32 - Integer.numberOfLeadingZeros(Math.abs(acValue)))]++;
 					zeroRun = 0;
 				}
 			}
 			if (zeroRun > 0) {
-				bitStream.write(acTable.codes[0x00], acTable.sizes[0x00]); // EOB (End of Block) code
+				acFrequencies[0x00]++;
 			}
-			return quantizedData[0];
+			return data[offset];
+		}
+
+		/**
+		 * Number of bits the given symbol counts take when coded with these
+		 * tables, including the extra bits after each code.
+		 */
+		public long codedBits(long[] dcFrequencies, long[] acFrequencies, boolean isLuminance) {
+			HuffmanTable dcTable = isLuminance ? dcLumTable : dcChromTable;
+			HuffmanTable acTable = isLuminance ? acLumTable : acChromTable;
+			long bits = 0;
+			for (int symbol = 0; symbol < 256; symbol++) {
+				bits += dcFrequencies[symbol] * (dcTable.sizes[symbol] + symbol);
+				bits += acFrequencies[symbol] * (acTable.sizes[symbol] + (symbol & 15));
+			}
+			return bits;
+		}
+
+		/**
+		 * The AC table used for luminance or chrominance blocks.
+		 */
+		HuffmanTable getAcTable(boolean isLuminance) {
+			return isLuminance ? acLumTable : acChromTable;
 		}
 
 		// Getters for writing Huffman tables to the JPEG header.
@@ -803,6 +3645,226 @@ public class JpegEncoder {
 		}
 	}
 
+	/**
+	 * Receives the bytes of a JPEG into a single ByteBuffer, and passes them on
+	 * when it fills up: to an OutputStream or FileChannel, to the next region
+	 * of a memory-mapped file, or to a larger heap buffer. Unlike
+	 * BufferedOutputStream, writes are not synchronized, and nothing is copied
+	 * between buffers on the way out.
+	 */
+	public abstract static class ByteSink extends OutputStream {
+		ByteBuffer buffer;
+		// Bytes passed on before the current buffer contents.
+		long drained;
+
+		ByteSink(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Wraps an OutputStream in a sink with an 8 KB buffer. A ByteSink is
+		 * returned as it is.
+		 */
+		public static ByteSink of(OutputStream out) {
+			return out instanceof ByteSink ? (ByteSink) out : new StreamSink(out);
+		}
+
+		/**
+		 * A sink that writes to a channel from a 64 KB direct buffer.
+		 */
+		public static ByteSink of(FileChannel channel) {
+			return new ChannelSink(channel);
+		}
+
+		/**
+		 * A sink that writes into a file mapped from its current position,
+		 * regionSize bytes at a time. flush() cuts the file to the bytes written.
+		 */
+		public static ByteSink mapped(FileChannel channel, long regionSize) throws IOException {
+			return new MappedSink(channel, regionSize);
+		}
+
+		/**
+		 * A sink that keeps the JPEG in a heap buffer of the given capacity,
+		 * which grows if the output does not fit.
+		 */
+		public static MemorySink toMemory(int capacity) {
+			return new MemorySink(capacity);
+		}
+
+		/**
+		 * Makes room in the buffer for at least needed more bytes.
+		 */
+		abstract void drain(int needed) throws IOException;
+
+		/**
+		 * Number of bytes written to this sink so far.
+		 */
+		public long position() {
+			return drained + buffer.position();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (!buffer.hasRemaining()) {
+				drain(1);
+			}
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (!buffer.hasRemaining()) {
+					drain(length);
+				}
+				int count = Math.min(length, buffer.remaining());
+				buffer.put(b, offset, count);
+				offset += count;
+				length -= count;
+			}
+		}
+
+		/**
+		 * Writes the remaining bytes of src.
+		 */
+		public void write(ByteBuffer src) throws IOException {
+			while (src.hasRemaining()) {
+				if (!buffer.hasRemaining()) {
+					drain(src.remaining());
+				}
+				int count = Math.min(src.remaining(), buffer.remaining());
+				buffer.put(buffer.position(), src, src.position(), count);
+				buffer.position(buffer.position() + count);
+				src.position(src.position() + count);
+			}
+		}
+	}
+
+	/**
+	 * Buffers the bytes for an OutputStream.
+	 */
+	static class StreamSink extends ByteSink {
+		private final OutputStream out;
+
+		StreamSink(OutputStream out) {
+			super(ByteBuffer.allocate(8192));
+			this.out = out;
+		}
+
+		@Override
+		void drain(int needed) throws IOException {
+			out.write(buffer.array(), 0, buffer.position());
+			drained += buffer.position();
+			buffer.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain(0);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the bytes to a FileChannel from a direct buffer.
+	 */
+	static class ChannelSink extends ByteSink {
+		private final FileChannel channel;
+
+		ChannelSink(FileChannel channel) {
+			super(ByteBuffer.allocateDirect(1 << 16));
+			this.channel = channel;
+		}
+
+		@Override
+		void drain(int needed) throws IOException {
+			drained += buffer.position();
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			drain(0);
+		}
+	}
+
+	/**
+	 * Writes the bytes straight into a memory-mapped file.
+	 */
+	static class MappedSink extends ByteSink {
+		private final FileChannel channel;
+		private final long regionSize;
+		// File position of the current mapping
+		private long base;
+
+		MappedSink(FileChannel channel, long regionSize) throws IOException {
+			super(channel.map(FileChannel.MapMode.READ_WRITE, channel.position(), regionSize));
+			this.channel = channel;
+			this.regionSize = regionSize;
+			this.base = channel.position();
+		}
+
+		@Override
+		void drain(int needed) throws IOException {
+			drained += buffer.position();
+			base += buffer.position();
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, base, Math.max(regionSize, needed));
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// Mapping extends the file to the end of the region.
+			channel.truncate(base + buffer.position());
+			channel.position(base + buffer.position());
+		}
+	}
+
+	/**
+	 * Keeps the bytes in a heap buffer, which the result is a view of.
+	 */
+	public static class MemorySink extends ByteSink {
+		MemorySink(int capacity) {
+			super(ByteBuffer.allocate(Math.max(capacity, 64)));
+		}
+
+		@Override
+		void drain(int needed) {
+			int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max(2L * buffer.capacity(), (long) buffer.position() + needed));
+			buffer = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), capacity), buffer.position(),
+					capacity - buffer.position());
+		}
+
+		public int size() {
+			return buffer.position();
+		}
+
+		void reset() {
+			buffer.clear();
+		}
+
+		/**
+		 * The bytes written, as a view of the heap buffer without a copy.
+		 */
+		public ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buffer.array(), 0, buffer.position());
+		}
+
+		/**
+		 * The bytes written as an array, which is the heap buffer itself when it
+		 * is exactly full and a copy otherwise.
+		 */
+		public byte[] toByteArray() {
+			byte[] array = buffer.array();
+			return array.length == buffer.position() ? array : Arrays.copyOf(array, buffer.position());
+		}
+	}
+
 	/**
 	 * Represents a pre-calculated Huffman table for efficient lookups during
 	 * encoding.
@@ -815,21 +3877,23 @@ public class JpegEncoder {
 		 * Builds the Huffman code lookup tables from the bit lengths and values.
 		 */
 		HuffmanTable(int[] bits, int[] values) {
-			List<Integer> huffSize = new ArrayList<>();
+			// Code length of each value, terminated by 0
+			int[] huffSize = new int[values.length + 1];
+			int p = 0;
 			for (int i = 1; i < 17; i++) {
 				for (int j = 0; j < bits[i - 1]; j++) {
-					huffSize.add(i);
+					huffSize[p++] = i;
 				}
 			}
-			huffSize.add(0);
+			huffSize[p] = 0;
 
 			int k = 0;
 			int code = 0;
-			int si = huffSize.get(0);
+			int si = huffSize[0];
 			while (true) {
-				if (huffSize.get(k) == 0)
+				if (huffSize[k] == 0)
 					break;
-				while (huffSize.get(k) == si) {
+				while (huffSize[k] == si) {
 					codes[values[k]] = code;
 					sizes[values[k]] = si;
 					code++;
@@ -839,58 +3903,219 @@ public class JpegEncoder {
 				si++;
 			}
 		}
+
+		/**
+		 * Builds an optimal Huffman table, limited to 16-bit codes, for the given
+		 * symbol frequencies, as in jpeg_gen_optimal_table() of the IJG library.
+		 * Entry 256 is reserved so that no code consists of all 1 bits.
+		 *
+		 * @return The bit counts (16 entries) and the symbol values.
+		 */
+		static int[][] generateOptimalTable(long[] frequencies) {
+			long[] freq = Arrays.copyOf(frequencies, 257);
+			int[] codeSize = new int[257];
+			int[] others = new int[257];
+			Arrays.fill(others, -1);
+			freq[256] = 1;
+
+			// Huffman's algorithm: repeatedly merge the two least frequent trees.
+			while (true) {
+				int c1 = -1;
+				long v = Long.MAX_VALUE;
+				for (int i = 0; i <= 256; i++) {
+					if (freq[i] != 0 && freq[i] <= v) {
+						v = freq[i];
+						c1 = i;
+					}
+				}
+				int c2 = -1;
+				v = Long.MAX_VALUE;
+				for (int i = 0; i <= 256; i++) {
+					if (freq[i] != 0 && freq[i] <= v && i != c1) {
+						v = freq[i];
+						c2 = i;
+					}
+				}
+				if (c2 < 0) {
+					break;
+				}
+
+				freq[c1] += freq[c2];
+				freq[c2] = 0;
+
+				codeSize[c1]++;
+				while (others[c1] >= 0) {
+					c1 = others[c1];
+					codeSize[c1]++;
+				}
+				others[c1] = c2;
+
+				codeSize[c2]++;
+				while (others[c2] >= 0) {
+					c2 = others[c2];
+					codeSize[c2]++;
+				}
+			}
+
+			// Count the codes of each length, which can reach 32 bits here.
+			int[] bits = new int[33];
+			for (int i = 0; i <= 256; i++) {
+				if (codeSize[i] > 0) {
+					bits[codeSize[i]]++;
+				}
+			}
+
+			// Limit the code lengths to 16 bits, moving pairs of symbols up the tree.
+			for (int i = 32; i > 16; i--) {
+				while (bits[i] > 0) {
+					int j = i - 2;
+					while (bits[j] == 0) {
+						j--;
+					}
+					bits[i] -= 2;
+					bits[i - 1]++;
+					bits[j + 1] += 2;
+					bits[j]--;
+				}
+			}
+
+			// Remove the reserved symbol from the longest codes.
+			int longest = 16;
+			while (bits[longest] == 0) {
+				longest--;
+			}
+			bits[longest]--;
+
+			int count = 0;
+			int[] tableBits = new int[16];
+			for (int i = 1; i <= 16; i++) {
+				tableBits[i - 1] = bits[i];
+				count += bits[i];
+			}
+
+			// Symbols sorted by code length, in increasing symbol order for equal lengths.
+			int[] values = new int[count];
+			int p = 0;
+			for (int length = 1; length <= 32; length++) {
+				for (int symbol = 0; symbol < 256; symbol++) {
+					if (codeSize[symbol] == length) {
+						values[p++] = symbol;
+					}
+				}
+			}
+			return new int[][] { tableBits, values };
+		}
 	}
 
 	/**
 	 * Manages writing individual bits to the output stream, buffering them into
 	 * bytes.
+	 * Codes are appended to a 64-bit accumulator with one shift and OR, and
+	 * whole 32-bit words are drained into a byte buffer, byte stuffing only
+	 * when the word contains an 0xFF byte.
 	 */
 	static class BitStream {
+		private static final int BUFFER_SIZE = 8192;
+
 		private OutputStream out;
-		private int buffer;
+		private final byte[] buffer = new byte[BUFFER_SIZE + 8];
+		private int position;
+		// Pending bits are the low count bits of the accumulator.
+		private long accumulator;
 		private int count;
+		// Metrics of the thread writing this stream, or null.
+		final EncoderMetrics metrics;
 
 		BitStream(OutputStream out) {
+			this(out, null);
+		}
+
+		BitStream(OutputStream out, EncoderMetrics metrics) {
 			this.out = out;
+			this.metrics = metrics;
 		}
 
 		/**
-		 * Writes a code of a certain size (number of bits) to the buffer.
+		 * Writes a code of a certain size (number of bits, at most 32) to the
+		 * buffer.
 		 */
 		void write(int code, int size) {
-			try {
-				for (int i = size - 1; i >= 0; i--) {
-					buffer = (buffer << 1) | ((code >> i) & 1);
-					count++;
-					if (count == 8) {
-						out.write(buffer);
-						if (buffer == 0xFF) {
-							out.write(0);
-						}
-						buffer = 0;
-						count = 0;
-					}
+			accumulator = (accumulator << size) | (code & ((1L << size) - 1));
+			count += size;
+			if (count >= 32) {
+				count -= 32;
+				drainWord((int) (accumulator >>> count));
+			}
+		}
+
+		/**
+		 * Appends four bytes to the buffer, inserting a 0x00 after each 0xFF.
+		 */
+		private void drainWord(int word) {
+			int inverted = ~word;
+			if (((inverted - 0x01010101) & ~inverted & 0x80808080) == 0) {
+				// No 0xFF byte, so nothing to stuff
+				buffer[position] = (byte) (word >>> 24);
+				buffer[position + 1] = (byte) (word >>> 16);
+				buffer[position + 2] = (byte) (word >>> 8);
+				buffer[position + 3] = (byte) word;
+				position += 4;
+			} else {
+				drainByte(word >>> 24);
+				drainByte(word >>> 16);
+				drainByte(word >>> 8);
+				drainByte(word);
+			}
+			if (position >= BUFFER_SIZE) {
+				if (metrics == null) {
+					writeBuffer();
+				} else {
+					// Called from within the Huffman timer, so the time moves to IO.
+					long start = System.nanoTime();
+					writeBuffer();
+					long elapsed = System.nanoTime() - start;
+					metrics.add(EncoderMetrics.Stage.IO, elapsed);
+					metrics.add(EncoderMetrics.Stage.HUFFMAN, -elapsed);
+				}
+			}
+		}
+
+		private void drainByte(int value) {
+			buffer[position++] = (byte) value;
+			if ((value & 0xFF) == 0xFF) {
+				buffer[position++] = 0;
+				if (metrics != null) {
+					metrics.stuffedBytes++;
 				}
+			}
+		}
+
+		private void writeBuffer() {
+			try {
+				out.write(buffer, 0, position);
 			} catch (IOException e) {
 				System.out.println("IO Error: " + e.getMessage());
 			}
+			position = 0;
 		}
 
 		/**
 		 * Writes any remaining bits from the buffer to the output stream,
 		 * padding with 1s if necessary.
 		 */
-
 		void flush() {
-			try {
-				if (count > 0) {
-					buffer <<= (8 - count);
-					out.write(buffer);
-				}
-			} catch (IOException e) {
-				System.out.println("IO Error: " + e.getMessage());
+			int padding = (8 - (count & 7)) & 7;
+			accumulator = (accumulator << padding) | ((1 << padding) - 1);
+			count += padding;
+			while (count > 0) {
+				count -= 8;
+				drainByte((int) (accumulator >>> count));
+			}
+			long start = System.nanoTime();
+			writeBuffer();
+			if (metrics != null) {
+				metrics.add(EncoderMetrics.Stage.IO, System.nanoTime() - start);
 			}
-
 		}
 	}
 }
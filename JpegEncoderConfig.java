@@ -0,0 +1,155 @@
+import java.awt.Image;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * JpegEncoderConfig - Everything about an encoding that depends only on the
+ * quality and the subsampling: the quantization tables, the DCT engines, the
+ * standard Huffman tables and the bytes of the DQT, DHT and SOS segments.
+ *
+ * Configs are immutable and can be shared between threads. of() builds each
+ * one once and caches it, so encoding many small images only sets up what is
+ * specific to each image.
+ */
+public final class JpegEncoderConfig {
+	private static final ConcurrentMap<Integer, JpegEncoderConfig> CACHE = new ConcurrentHashMap<>();
+
+	final int quality;
+	final JpegEncoder.Subsampling subsampling;
+	// 1 for grayscale, otherwise 3.
+	final int numComponents;
+
+	final JpegEncoder.Quantizer quantizer;
+	final JpegEncoder.Huffman huffman;
+	final JpegEncoder.DCT dct;
+	// Indexed by DctMethod ordinal
+	private final JpegEncoder.DctEngine[] dctEngines;
+	// Float DCT with trellis quantization against the standard Huffman tables
+	final JpegEncoder.DctEngine trellisEngine;
+
+	// Start of Image, JFIF header and DQT
+	final byte[] tableHeader;
+	// DHT of the standard Huffman tables
+	final byte[] huffmanHeader;
+	// SOS of a baseline scan
+	final byte[] scanHeader;
+
+	private JpegEncoderConfig(int quality, JpegEncoder.Subsampling subsampling) {
+		this.quality = quality;
+		this.subsampling = subsampling;
+		this.numComponents = subsampling == JpegEncoder.Subsampling.YUV_400 ? 1 : 3;
+
+		this.quantizer = new JpegEncoder.Quantizer(quality);
+		this.huffman = new JpegEncoder.Huffman();
+		this.dct = JpegEncoder.newDCT();
+		this.dctEngines = new JpegEncoder.DctEngine[] {
+				new JpegEncoder.FloatDctEngine(dct, quantizer),
+				new JpegEncoder.IntegerDctEngine(quantizer, false),
+				new JpegEncoder.IntegerDctEngine(quantizer, true)
+		};
+		this.trellisEngine = new JpegEncoder.TrellisDctEngine(dct, quantizer, huffman);
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			JpegEncoder.writeJFIF(out);
+			JpegEncoder.writeDQT(out, quantizer, numComponents);
+			this.tableHeader = out.toByteArray();
+
+			out.reset();
+			JpegEncoder.writeDHT(out, huffman, numComponents);
+			this.huffmanHeader = out.toByteArray();
+
+			out.reset();
+			JpegEncoder.writeSOS(out, numComponents);
+			this.scanHeader = out.toByteArray();
+		} catch (IOException e) {
+			// A ByteArrayOutputStream does not throw.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the shared config for a quality (clamped to 1-100) and
+	 * subsampling scheme.
+	 */
+	public static JpegEncoderConfig of(int quality, JpegEncoder.Subsampling subsampling) {
+		int clamped = Math.max(1, Math.min(100, quality));
+		return CACHE.computeIfAbsent(clamped * 8 + subsampling.ordinal(),
+				key -> new JpegEncoderConfig(clamped, subsampling));
+	}
+
+	/**
+	 * The config with the same quality for grayscale (YUV_400) images.
+	 */
+	public JpegEncoderConfig grayscale() {
+		return of(quality, JpegEncoder.Subsampling.YUV_400);
+	}
+
+	public int getQuality() {
+		return quality;
+	}
+
+	public JpegEncoder.Subsampling getSubsampling() {
+		return subsampling;
+	}
+
+	JpegEncoder.DctEngine getDctEngine(JpegEncoder.DctMethod method) {
+		return dctEngines[method.ordinal()];
+	}
+
+	/**
+	 * An upper bound on the size of a baseline JPEG of the given dimensions
+	 * with these settings, the same one libjpeg-turbo's tjBufSize() gives:
+	 * 2 bytes per luma sample, plus 4 bytes per 64 samples in each chroma MCU.
+	 */
+	public long maxOutputSize(int width, int height) {
+		int mcuWidth = subsampling == JpegEncoder.Subsampling.YUV_444 || numComponents == 1 ? 8 : 16;
+		int mcuHeight = subsampling == JpegEncoder.Subsampling.YUV_420 ? 16 : 8;
+		int chromaFactor = numComponents == 1 ? 0 : 4 * 64 / (mcuWidth * mcuHeight);
+		long paddedWidth = (width + mcuWidth - 1) / mcuWidth * mcuWidth;
+		long paddedHeight = (height + mcuHeight - 1) / mcuHeight * mcuHeight;
+		return paddedWidth * paddedHeight * (2 + chromaFactor) + 2048;
+	}
+
+	/**
+	 * A starting buffer size for a JPEG of the given dimensions: an eighth of
+	 * maxOutputSize(), about 3 bits per pixel, which holds a typical photo even
+	 * at high quality. Buffers started from it grow when an image needs more.
+	 */
+	public int estimateOutputSize(int width, int height) {
+		return (int) Math.min(maxOutputSize(width, height) / 8 + 2048, Integer.MAX_VALUE - 8);
+	}
+
+	/**
+	 * Encodes an image as a baseline JPEG into a heap buffer started from
+	 * estimateOutputSize(), and returns a view of the bytes written without
+	 * copying them. To write into a buffer that never has to grow, encode
+	 * into ByteSink.toMemory() sized with maxOutputSize() instead.
+	 */
+	public ByteBuffer encode(Image image) {
+		JpegEncoder.MemorySink sink = JpegEncoder.ByteSink.toMemory(
+				estimateOutputSize(image.getWidth(null), image.getHeight(null)));
+		encode(image, sink);
+		return sink.toByteBuffer();
+	}
+
+	/**
+	 * Encodes an image into out as a baseline JPEG. For other options, create
+	 * a JpegEncoder with this config instead.
+	 */
+	public void encode(Image image, OutputStream out) {
+		new JpegEncoder(image, this, out).compress();
+	}
+
+	/**
+	 * Encodes the rows of a row source into out, streaming them one MCU row at
+	 * a time.
+	 */
+	public void encode(JpegEncoder.RowSource source, OutputStream out) {
+		new JpegEncoder(source, this, out).compress();
+	}
+}
@@ -0,0 +1,298 @@
+import java.awt.Image;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * JpegTiler - Cuts an image into square tiles and encodes each one as its own
+ * JPEG, for map and deep zoom viewers.
+ *
+ * The image is converted to YCbCr once, in parallel bands. Each tile is
+ * encoded from views of the converted planes, without copying its samples,
+ * on the fork-join pool with the tables of one shared config. Tiles start on
+ * MCU boundaries, so a tile encodes to the same bytes as the same region
+ * cropped from the image.
+ */
+public final class JpegTiler {
+	private final JpegEncoderConfig config;
+	private final int tileSize;
+
+	/**
+	 * @param tileSize Width and height of the tiles in pixels, a multiple of 16
+	 *                 so every tile starts on an MCU boundary. Tiles on the
+	 *                 right and bottom edges are smaller.
+	 */
+	public JpegTiler(JpegEncoderConfig config, int tileSize) {
+		if (tileSize <= 0 || tileSize % 16 != 0) {
+			throw new IllegalArgumentException("Tile size must be a positive multiple of 16");
+		}
+		this.config = config;
+		this.tileSize = tileSize;
+	}
+
+	/**
+	 * Encodes the tiles of the image at its full size into the sink, as level
+	 * 0, and returns once all of them are written.
+	 */
+	public void encode(Image image, TileSink sink) throws IOException {
+		JpegEncoderConfig config = configFor(image);
+		join(forkTiles(convert(image, config), 0, config, sink));
+	}
+
+	/**
+	 * Encodes a Deep Zoom pyramid into the sink. Level getLevels(width,
+	 * height) - 1 is the full image, and each level below it is half the size
+	 * of the one above, rounded up, down to a single pixel at level 0. Each
+	 * level is reduced from the planes of the level above while the tiles of
+	 * that level are encoded, so at most two levels are held at once.
+	 */
+	public void encodePyramid(Image image, TileSink sink) throws IOException {
+		JpegEncoderConfig config = configFor(image);
+		JpegEncoder.JpegInfo level = convert(image, config);
+		int levels = getLevels(level.imageWidth, level.imageHeight);
+
+		List<ForkJoinTask<?>> pending = forkTiles(level, levels - 1, config, sink);
+		for (int index = levels - 2; index >= 0; index--) {
+			JpegEncoder.JpegInfo reduced = new JpegEncoder.JpegInfo((level.imageWidth + 1) / 2,
+					(level.imageHeight + 1) / 2, config.subsampling);
+			reduced.reduceFrom(level);
+			// The larger level's planes are dropped once its tiles are written.
+			join(pending);
+			level = reduced;
+			pending = forkTiles(level, index, config, sink);
+		}
+		join(pending);
+	}
+
+	/**
+	 * The number of levels of a Deep Zoom pyramid of an image, one more than
+	 * the base 2 logarithm of its longest side, rounded up.
+	 */
+	public static int getLevels(int width, int height) {
+		return 33 - Integer.numberOfLeadingZeros(Math.max(width, height) - 1);
+	}
+
+	/**
+	 * The .dzi descriptor of the pyramid encodePyramid() writes for an image
+	 * of this size. Deep Zoom viewers expect the tiles next to it in a
+	 * directory named after it with _files appended.
+	 */
+	public String dziDescriptor(int width, int height) {
+		return String.format("<?xml version=\"1.0\" encoding=\"UTF-8\"?>%n"
+				+ "<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"jpg\" Overlap=\"0\" "
+				+ "TileSize=\"%d\">%n  <Size Width=\"%d\" Height=\"%d\"/>%n</Image>%n", tileSize, width, height);
+	}
+
+	private JpegEncoderConfig configFor(Image image) {
+		return JpegEncoder.JpegInfo.isGrayscale(image) ? config.grayscale() : config;
+	}
+
+	/**
+	 * Converts the whole image into planes, in bands on the fork-join pool.
+	 */
+	private static JpegEncoder.JpegInfo convert(Image image, JpegEncoderConfig config) {
+		JpegEncoder.JpegInfo info = new JpegEncoder.JpegInfo(image, config.subsampling, null, true);
+		info.convertPlanesInParallel();
+		return info;
+	}
+
+	/**
+	 * Starts encoding every tile of a converted level on the fork-join pool.
+	 */
+	private List<ForkJoinTask<?>> forkTiles(JpegEncoder.JpegInfo level, int index, JpegEncoderConfig config,
+			TileSink sink) {
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int top = 0, row = 0; top < level.imageHeight; top += tileSize, row++) {
+			for (int left = 0, column = 0; left < level.imageWidth; left += tileSize, column++) {
+				JpegEncoder.JpegInfo tile = new JpegEncoder.JpegInfo(level, left, top,
+						Math.min(tileSize, level.imageWidth - left), Math.min(tileSize, level.imageHeight - top),
+						config.subsampling);
+				int tileColumn = column;
+				int tileRow = row;
+				tasks.add(ForkJoinTask.adapt(() -> encodeTile(tile, index, tileColumn, tileRow, config, sink)).fork());
+			}
+		}
+		return tasks;
+	}
+
+	private static void encodeTile(JpegEncoder.JpegInfo tile, int level, int column, int row,
+			JpegEncoderConfig config, TileSink sink) {
+		JpegEncoder.MemorySink out = JpegEncoder.ByteSink.toMemory(
+				config.estimateOutputSize(tile.imageWidth, tile.imageHeight));
+		new JpegEncoder(tile, config, out).compress();
+		try {
+			sink.write(level, column, row, out.toByteBuffer());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Waits for every task. If one fails, the others are cancelled and the
+	 * I/O error of the sink is rethrown.
+	 */
+	private static void join(List<ForkJoinTask<?>> tasks) throws IOException {
+		try {
+			for (ForkJoinTask<?> task : tasks) {
+				task.join();
+			}
+		} catch (RuntimeException e) {
+			for (ForkJoinTask<?> task : tasks) {
+				task.cancel(false);
+			}
+			if (e instanceof UncheckedIOException) {
+				throw ((UncheckedIOException) e).getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * The path of a tile within the directory or zip file of a pyramid, as Deep
+	 * Zoom names it: level/column_row.jpg.
+	 */
+	static String tilePath(int level, int column, int row) {
+		return level + "/" + column + "_" + row + ".jpg";
+	}
+
+	/**
+	 * Receives the encoded tiles, from several threads at once and in no
+	 * particular order.
+	 */
+	public interface TileSink extends Closeable {
+		/**
+		 * Takes one tile. Each tile is encoded into a buffer of its own, which
+		 * the sink may keep.
+		 */
+		void write(int level, int column, int row, ByteBuffer jpeg) throws IOException;
+
+		@Override
+		default void close() throws IOException {
+		}
+
+		/**
+		 * Writes each tile to its own file under dir, at tilePath().
+		 */
+		static TileSink directory(Path dir) {
+			return new DirectorySink(dir);
+		}
+
+		/**
+		 * Writes the tiles as stored (uncompressed) entries of a zip file at
+		 * tilePath(). Closing the sink finishes the zip and closes out.
+		 */
+		static TileSink zip(OutputStream out) {
+			return new ZipSink(out);
+		}
+
+		/**
+		 * Keeps the tiles on the heap.
+		 */
+		static MapSink toMemory() {
+			return new MapSink();
+		}
+	}
+
+	private static class DirectorySink implements TileSink {
+		private final Path dir;
+
+		DirectorySink(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		public void write(int level, int column, int row, ByteBuffer jpeg) throws IOException {
+			Path file = dir.resolve(tilePath(level, column, row));
+			Files.createDirectories(file.getParent());
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				while (jpeg.hasRemaining()) {
+					channel.write(jpeg);
+				}
+			}
+		}
+	}
+
+	private static class ZipSink implements TileSink {
+		private final ZipOutputStream zip;
+
+		ZipSink(OutputStream out) {
+			this.zip = new ZipOutputStream(out);
+		}
+
+		@Override
+		public void write(int level, int column, int row, ByteBuffer jpeg) throws IOException {
+			// JPEG data does not deflate, so the entries are stored.
+			CRC32 crc = new CRC32();
+			crc.update(jpeg.duplicate());
+			ZipEntry entry = new ZipEntry(tilePath(level, column, row));
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(jpeg.remaining());
+			entry.setCompressedSize(jpeg.remaining());
+			entry.setCrc(crc.getValue());
+			synchronized (zip) {
+				zip.putNextEntry(entry);
+				if (jpeg.hasArray()) {
+					zip.write(jpeg.array(), jpeg.arrayOffset() + jpeg.position(), jpeg.remaining());
+				} else {
+					byte[] bytes = new byte[jpeg.remaining()];
+					jpeg.duplicate().get(bytes);
+					zip.write(bytes);
+				}
+				zip.closeEntry();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized (zip) {
+				zip.close();
+			}
+		}
+	}
+
+	/**
+	 * Holds the buffer each tile was encoded into, keyed by tilePath().
+	 */
+	public static class MapSink implements TileSink {
+		private final Map<String, ByteBuffer> tiles = new ConcurrentHashMap<>();
+
+		MapSink() {
+		}
+
+		@Override
+		public void write(int level, int column, int row, ByteBuffer jpeg) {
+			tiles.put(tilePath(level, column, row), jpeg);
+		}
+
+		/**
+		 * The tile at a level, column and row, or null if it was not written.
+		 */
+		public ByteBuffer get(int level, int column, int row) {
+			ByteBuffer tile = tiles.get(tilePath(level, column, row));
+			return tile == null ? null : tile.asReadOnlyBuffer();
+		}
+
+		/**
+		 * All the tiles, keyed by tilePath().
+		 */
+		public Map<String, ByteBuffer> tiles() {
+			return Collections.unmodifiableMap(tiles);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+import java.util.Arrays;
+
+/*
+ * QualityMetrics - How far the encoded image is from the converted one, per
+ * component, measured while the image is encoded.
+ *
+ * Each quantized block is dequantized and inverse transformed right after
+ * quantization, rounded and clamped to 0-255 as a decoder would, and compared
+ * with the Y, Cb or Cr samples it was made from. Chroma is compared at its
+ * subsampled size, and padding outside the image is not counted. SSIM is
+ * computed over each 8x8 block rather than a sliding window, and averaged.
+ *
+ * Encoding threads collect into their own instance, which is merged into the
+ * encoder's at the end of each task.
+ */
+public final class QualityMetrics {
+	// SSIM stabilizing constants for 8-bit samples
+	private static final double C1 = (0.01 * 255) * (0.01 * 255);
+	private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+	// Inverse DCT basis, C(u)/2 * cos((2x+1)u*pi/16), indexed [x * 8 + u]
+	private static final float[] BASIS = new float[64];
+	static {
+		for (int x = 0; x < 8; x++) {
+			for (int u = 0; u < 8; u++) {
+				double c = u == 0 ? Math.sqrt(0.5) : 1.0;
+				BASIS[x * 8 + u] = (float) (c / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16));
+			}
+		}
+	}
+
+	private final long[] samples = new long[3];
+	private final double[] squaredError = new double[3];
+	private final double[] ssimSum = new double[3];
+	private final long[] ssimBlocks = new long[3];
+
+	// Scratch for one block, used only by the thread that owns this instance
+	private final float[] coeffs = new float[64];
+	private final float[] rows = new float[64];
+	private final float[] decoded = new float[64];
+
+	QualityMetrics() {
+	}
+
+	/**
+	 * Reconstructs one quantized block and adds its error against the source.
+	 *
+	 * @param quantized Quantized coefficients in zigzag order.
+	 * @param nonzero   Mask of the nonzero coefficients in zigzag order.
+	 * @param quantum   Quantization table in row-major order.
+	 * @param width     Columns of the block inside the image (1-8).
+	 * @param height    Rows of the block inside the image (1-8).
+	 */
+	void addBlock(int component, float[] src, int offset, int stride, int width, int height, int[] quantized,
+			long nonzero, int[] quantum) {
+		// Dequantize, noting which rows of coefficients are not all zero.
+		int nonzeroRows = 0;
+		Arrays.fill(coeffs, 0f);
+		for (long remaining = nonzero; remaining != 0; remaining &= remaining - 1) {
+			int k = Long.numberOfTrailingZeros(remaining);
+			int i = JpegEncoder.JpegInfo.JPEG_NATURAL_ORDER[k];
+			coeffs[i] = quantized[k] * quantum[i];
+			nonzeroRows |= 1 << (i >> 3);
+		}
+
+		// Rows: rows[v][x] = sum over u of basis[x][u] * F(v, u)
+		for (int v = 0; v < 8; v++) {
+			if ((nonzeroRows & (1 << v)) == 0) {
+				continue;
+			}
+			for (int x = 0; x < 8; x++) {
+				float sum = 0;
+				for (int u = 0; u < 8; u++) {
+					sum += BASIS[x * 8 + u] * coeffs[v * 8 + u];
+				}
+				rows[v * 8 + x] = sum;
+			}
+		}
+
+		// Columns, one coefficient row at a time so the loop over x vectorizes,
+		// adding back the 128 the forward DCT subtracted
+		Arrays.fill(decoded, 128f);
+		for (int v = 0; v < 8; v++) {
+			if ((nonzeroRows & (1 << v)) == 0) {
+				continue;
+			}
+			for (int y = 0; y < 8; y++) {
+				float basis = BASIS[y * 8 + v];
+				for (int x = 0; x < 8; x++) {
+					decoded[y * 8 + x] += basis * rows[v * 8 + x];
+				}
+			}
+		}
+
+		// Sums over one block fit in float precision.
+		float sumX = 0, sumY = 0, sumXX = 0, sumYY = 0, sumXY = 0, error = 0;
+		for (int y = 0; y < height; y++) {
+			int in = offset + y * stride;
+			for (int x = 0; x < width; x++) {
+				float value = Math.max(0, Math.min(255, Math.round(decoded[y * 8 + x])));
+				float original = src[in + x];
+				float diff = original - value;
+				error += diff * diff;
+				sumX += original;
+				sumY += value;
+				sumXX += original * original;
+				sumYY += value * value;
+				sumXY += original * value;
+			}
+		}
+
+		int n = width * height;
+		double meanX = sumX / n;
+		double meanY = sumY / n;
+		double varianceX = Math.max(0, sumXX / n - meanX * meanX);
+		double varianceY = Math.max(0, sumYY / n - meanY * meanY);
+		double covariance = sumXY / n - meanX * meanY;
+		samples[component] += n;
+		squaredError[component] += error;
+		ssimSum[component] += (2 * meanX * meanY + C1) * (2 * covariance + C2)
+				/ ((meanX * meanX + meanY * meanY + C1) * (varianceX + varianceY + C2));
+		ssimBlocks[component]++;
+	}
+
+	/**
+	 * Adds the metrics of an encoding thread.
+	 */
+	synchronized void merge(QualityMetrics other) {
+		for (int c = 0; c < 3; c++) {
+			samples[c] += other.samples[c];
+			squaredError[c] += other.squaredError[c];
+			ssimSum[c] += other.ssimSum[c];
+			ssimBlocks[c] += other.ssimBlocks[c];
+		}
+	}
+
+	/**
+	 * Clears everything, before the image is quantized again.
+	 */
+	synchronized void reset() {
+		for (int c = 0; c < 3; c++) {
+			samples[c] = 0;
+			squaredError[c] = 0;
+			ssimSum[c] = 0;
+			ssimBlocks[c] = 0;
+		}
+	}
+
+	/**
+	 * Mean squared error of a component: 0 (Y), 1 (Cb) or 2 (Cr).
+	 */
+	public synchronized double getMse(int component) {
+		return samples[component] == 0 ? 0 : squaredError[component] / samples[component];
+	}
+
+	/**
+	 * Mean squared error over the samples of all components.
+	 */
+	public synchronized double getMse() {
+		long total = samples[0] + samples[1] + samples[2];
+		return total == 0 ? 0 : (squaredError[0] + squaredError[1] + squaredError[2]) / total;
+	}
+
+	/**
+	 * PSNR of a component in dB, infinite when it is lossless.
+	 */
+	public double getPsnr(int component) {
+		return psnr(getMse(component));
+	}
+
+	/**
+	 * PSNR over the samples of all components in dB.
+	 */
+	public double getPsnr() {
+		return psnr(getMse());
+	}
+
+	/**
+	 * Mean SSIM of the 8x8 blocks of a component.
+	 */
+	public synchronized double getSsim(int component) {
+		return ssimBlocks[component] == 0 ? 1 : ssimSum[component] / ssimBlocks[component];
+	}
+
+	/**
+	 * SSIM of all components, each weighted by its number of samples.
+	 */
+	public synchronized double getSsim() {
+		double sum = 0;
+		long total = 0;
+		for (int c = 0; c < 3; c++) {
+			sum += getSsim(c) * samples[c];
+			total += samples[c];
+		}
+		return total == 0 ? 1 : sum / total;
+	}
+
+	private static double psnr(double mse) {
+		return 10 * Math.log10(255.0 * 255.0 / mse);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(String.format("PSNR %.2f dB, SSIM %.4f", getPsnr(), getSsim()));
+		String[] names = { "Y", "Cb", "Cr" };
+		for (int c = 0; c < 3; c++) {
+			if (samples[c] > 0) {
+				sb.append(String.format(" | %s: %.2f dB, %.4f", names[c], getPsnr(c), getSsim(c)));
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,64 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * RGB to YCbCr conversion on the Vector API, converting 8 pixels per
+ * iteration. Loaded by JpegEncoder only when the jdk.incubator.vector module
+ * is present.
+ */
+class VectorColorConverter implements JpegEncoder.ColorConverter {
+	private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_256;
+
+	// Grayscale images are rare enough that their luma is left to the scalar
+	// reference.
+	private static final JpegEncoder.ColorConverter SCALAR = new JpegEncoder.ScalarColorConverter();
+
+	/**
+	 * Fails on hardware without 256-bit vectors, where the Vector API
+	 * emulates them in plain Java far slower than the scalar code.
+	 */
+	VectorColorConverter() {
+		if (IntVector.SPECIES_PREFERRED.vectorBitSize() < INT_SPECIES.vectorBitSize()) {
+			throw new UnsupportedOperationException("No hardware support for " + INT_SPECIES);
+		}
+	}
+
+	@Override
+	public void convertRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset, float[] cbRow,
+			float[] crRow) {
+		int lanes = INT_SPECIES.length();
+		int col = 0;
+		for (; col <= width - lanes; col += lanes) {
+			IntVector pixel = IntVector.fromArray(INT_SPECIES, pixels, pixelOffset + col);
+			FloatVector r = toFloat(pixel.lanewise(VectorOperators.LSHR, 16).and(0xff));
+			FloatVector g = toFloat(pixel.lanewise(VectorOperators.LSHR, 8).and(0xff));
+			FloatVector b = toFloat(pixel.and(0xff));
+
+			r.mul(0.299f).add(g.mul(0.587f)).add(b.mul(0.114f)).intoArray(yRow, yOffset + col);
+			b.mul(0.5f).sub(r.mul(0.168736f)).sub(g.mul(0.331264f)).add(128f).intoArray(cbRow, col);
+			r.mul(0.5f).sub(g.mul(0.418688f)).sub(b.mul(0.081312f)).add(128f).intoArray(crRow, col);
+		}
+
+		// Pixels left over after the last full vector
+		for (; col < width; col++) {
+			int pixel = pixels[pixelOffset + col];
+			float r = (pixel >> 16) & 0xff;
+			float g = (pixel >> 8) & 0xff;
+			float b = pixel & 0xff;
+			yRow[yOffset + col] = 0.299f * r + 0.587f * g + 0.114f * b;
+			cbRow[col] = 0.5f * b - 0.168736f * r - 0.331264f * g + 128f;
+			crRow[col] = 0.5f * r - 0.418688f * g - 0.081312f * b + 128f;
+		}
+	}
+
+	@Override
+	public void convertLumaRow(int[] pixels, int pixelOffset, int width, float[] yRow, int yOffset) {
+		SCALAR.convertLumaRow(pixels, pixelOffset, width, yRow, yOffset);
+	}
+
+	private static FloatVector toFloat(IntVector v) {
+		return (FloatVector) v.convert(VectorOperators.I2F, 0);
+	}
+}
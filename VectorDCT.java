@@ -0,0 +1,99 @@
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Forward AAN DCT on the Vector API. Each block row is held in one 8-lane
+ * vector, so every butterfly step of a pass handles a whole row or column
+ * at once. Loaded by JpegEncoder only when the jdk.incubator.vector module is
+ * present.
+ */
+class VectorDCT extends JpegEncoder.DCT {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_256;
+
+	/**
+	 * Fails on hardware without 256-bit vectors, where the Vector API
+	 * emulates them in plain Java far slower than the scalar code.
+	 */
+	VectorDCT() {
+		if (FloatVector.SPECIES_PREFERRED.vectorBitSize() < SPECIES.vectorBitSize()) {
+			throw new UnsupportedOperationException("No hardware support for " + SPECIES);
+		}
+	}
+
+	/**
+	 * Performs a forward DCT using the AAN algorithm, with the same scaling as
+	 * the scalar version. Both passes run in this one method: vectors passed
+	 * to a method the JIT does not inline are boxed, which would allocate for
+	 * every block.
+	 */
+	@Override
+	public void forwardDCT(float[] src, int offset, int stride, float[] dst) {
+		for (int pass = 0; pass < 2; pass++) {
+			// Vertical pass: lane j of each vector is column j of the block. The
+			// horizontal pass runs the same steps over the transposed block.
+			float[] in = pass == 0 ? src : dst;
+			int base = pass == 0 ? offset : 0;
+			int step = pass == 0 ? stride : 8;
+			float level = pass == 0 ? 128f : 0f;
+			FloatVector d0 = FloatVector.fromArray(SPECIES, in, base).sub(level);
+			FloatVector d1 = FloatVector.fromArray(SPECIES, in, base + step).sub(level);
+			FloatVector d2 = FloatVector.fromArray(SPECIES, in, base + 2 * step).sub(level);
+			FloatVector d3 = FloatVector.fromArray(SPECIES, in, base + 3 * step).sub(level);
+			FloatVector d4 = FloatVector.fromArray(SPECIES, in, base + 4 * step).sub(level);
+			FloatVector d5 = FloatVector.fromArray(SPECIES, in, base + 5 * step).sub(level);
+			FloatVector d6 = FloatVector.fromArray(SPECIES, in, base + 6 * step).sub(level);
+			FloatVector d7 = FloatVector.fromArray(SPECIES, in, base + 7 * step).sub(level);
+
+			FloatVector tmp0 = d0.add(d7);
+			FloatVector tmp7 = d0.sub(d7);
+			FloatVector tmp1 = d1.add(d6);
+			FloatVector tmp6 = d1.sub(d6);
+			FloatVector tmp2 = d2.add(d5);
+			FloatVector tmp5 = d2.sub(d5);
+			FloatVector tmp3 = d3.add(d4);
+			FloatVector tmp4 = d3.sub(d4);
+
+			FloatVector tmp10 = tmp0.add(tmp3);
+			FloatVector tmp13 = tmp0.sub(tmp3);
+			FloatVector tmp11 = tmp1.add(tmp2);
+			FloatVector tmp12 = tmp1.sub(tmp2);
+
+			// Output k is stored as block row k.
+			tmp10.add(tmp11).intoArray(dst, 0);
+			tmp10.sub(tmp11).intoArray(dst, 32);
+
+			FloatVector z1 = tmp12.add(tmp13).mul(0.707106781f);
+			tmp13.add(z1).intoArray(dst, 16);
+			tmp13.sub(z1).intoArray(dst, 48);
+
+			tmp10 = tmp4.add(tmp5);
+			tmp11 = tmp5.add(tmp6);
+			tmp12 = tmp6.add(tmp7);
+
+			FloatVector z5 = tmp10.sub(tmp12).mul(0.382683433f);
+			FloatVector z2 = tmp10.mul(0.541196100f).add(z5);
+			FloatVector z4 = tmp12.mul(1.306562965f).add(z5);
+			FloatVector z3 = tmp11.mul(0.707106781f);
+
+			FloatVector z11 = tmp7.add(z3);
+			FloatVector z13 = tmp7.sub(z3);
+
+			z13.add(z2).intoArray(dst, 40);
+			z13.sub(z2).intoArray(dst, 24);
+			z11.add(z4).intoArray(dst, 8);
+			z11.sub(z4).intoArray(dst, 56);
+
+			transpose(dst);
+		}
+	}
+
+	private static void transpose(float[] block) {
+		for (int i = 1; i < 8; i++) {
+			for (int j = 0; j < i; j++) {
+				float t = block[i * 8 + j];
+				block[i * 8 + j] = block[j * 8 + i];
+				block[j * 8 + i] = t;
+			}
+		}
+	}
+}